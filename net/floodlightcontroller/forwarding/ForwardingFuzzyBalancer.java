@@ -0,0 +1,203 @@
+/**
+ * This is an extended, modified version of the original Forwarding
+ * file provided with Floodlight 0.90
+ *
+ */
+
+package net.floodlightcontroller.forwarding;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.routing.IRoutingDecision;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.topology.IFlowRoutingService;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwarding that asks the balancing topology manager for the route of the
+ * flow itself, passing the match of the packet-in, so that flows between
+ * the same attachment points can be spread over the candidates by their
+ * headers. Load it in place of Forwarding.
+ */
+public class ForwardingFuzzyBalancer extends Forwarding {
+
+    protected static Logger log = LoggerFactory.getLogger(ForwardingFuzzyBalancer.class);
+
+    protected IFlowRoutingService flowRouting;
+
+    @Override
+    public Collection<Class<? extends IFloodlightService>> getModuleDependencies() {
+        Collection<Class<? extends IFloodlightService>> l = super.getModuleDependencies();
+        l.add(IFlowRoutingService.class);
+        return l;
+    }
+
+    @Override
+    public void init(FloodlightModuleContext context) throws FloodlightModuleException {
+        super.init(context);
+        flowRouting = context.getServiceImpl(IFlowRoutingService.class);
+    }
+
+    /**
+     * Same as Forwarding.doForwardFlow, but the routes are asked with the
+     * match of the packet-in.
+     */
+    @Override
+    protected void doForwardFlow(IOFSwitch sw, OFPacketIn pi,
+                                 FloodlightContext cntx,
+                                 boolean requestFlowRemovedNotifn) {
+        OFMatch match = new OFMatch();
+        match.loadFromPacket(pi.getPacketData(), pi.getInPort());
+
+        // Check if we have the location of the destination
+        IDevice dstDevice =
+                IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_DST_DEVICE);
+        if (dstDevice == null) {
+            // Flood since we don't know the dst device
+            doFlood(sw, pi, cntx);
+            return;
+        }
+
+        IDevice srcDevice =
+                IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE);
+        Long srcIsland = topology.getL2DomainId(sw.getId());
+        if (srcDevice == null) {
+            log.debug("No device entry found for source device");
+            return;
+        }
+        if (srcIsland == null) {
+            log.debug("No openflow island found for source {}/{}",
+                      sw.getStringId(), pi.getInPort());
+            return;
+        }
+
+        // Validate that we have a destination known on the same island
+        // Validate that the source and destination are not on the same switchport
+        boolean on_same_island = false;
+        boolean on_same_if = false;
+        for (SwitchPort dstDap : dstDevice.getAttachmentPoints()) {
+            long dstSwDpid = dstDap.getSwitchDPID();
+            Long dstIsland = topology.getL2DomainId(dstSwDpid);
+            if ((dstIsland != null) && dstIsland.equals(srcIsland)) {
+                on_same_island = true;
+                if ((sw.getId() == dstSwDpid) &&
+                    (pi.getInPort() == dstDap.getPort())) {
+                    on_same_if = true;
+                }
+                break;
+            }
+        }
+
+        if (!on_same_island) {
+            // Flood since we don't know the dst device
+            if (log.isTraceEnabled()) {
+                log.trace("No first hop island found for destination " +
+                          "device {}, Action = flooding", dstDevice);
+            }
+            doFlood(sw, pi, cntx);
+            return;
+        }
+
+        if (on_same_if) {
+            if (log.isTraceEnabled()) {
+                log.trace("Both source and destination are on the same " +
+                          "switch/port {}/{}, Action = NOP",
+                          sw.toString(), pi.getInPort());
+            }
+            return;
+        }
+
+        // Install all the routes where both src and dst have attachment
+        // points.  Since the lists are stored in sorted order we can
+        // traverse the attachment points in O(m+n) time
+        SwitchPort[] srcDaps = srcDevice.getAttachmentPoints();
+        Arrays.sort(srcDaps, clusterIdComparator);
+        SwitchPort[] dstDaps = dstDevice.getAttachmentPoints();
+        Arrays.sort(dstDaps, clusterIdComparator);
+
+        int iSrcDaps = 0, iDstDaps = 0;
+        while ((iSrcDaps < srcDaps.length) && (iDstDaps < dstDaps.length)) {
+            SwitchPort srcDap = srcDaps[iSrcDaps];
+            SwitchPort dstDap = dstDaps[iDstDaps];
+            Long srcCluster = topology.getL2DomainId(srcDap.getSwitchDPID());
+            Long dstCluster = topology.getL2DomainId(dstDap.getSwitchDPID());
+            if (srcCluster == null) {
+                iSrcDaps++;
+                continue;
+            }
+            if (dstCluster == null) {
+                iDstDaps++;
+                continue;
+            }
+
+            int srcVsDest = srcCluster.compareTo(dstCluster);
+            if (srcVsDest == 0) {
+                if (!srcDap.equals(dstDap)) {
+                    Route route =
+                            flowRouting.getRoute(srcDap.getSwitchDPID(),
+                                                 (short)srcDap.getPort(),
+                                                 dstDap.getSwitchDPID(),
+                                                 (short)dstDap.getPort(),
+                                                 match, true);
+                    if (route != null) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("pushRoute match={} route={} " +
+                                      "destination={}:{}",
+                                      new Object[] {match, route,
+                                                    dstDap.getSwitchDPID(),
+                                                    dstDap.getPort()});
+                        }
+                        long cookie = AppCookie.makeCookie(FORWARDING_APP_ID, 0);
+
+                        // if there is prior routing decision use wildcard
+                        Integer wildcard_hints = null;
+                        IRoutingDecision decision = null;
+                        if (cntx != null) {
+                            decision = IRoutingDecision.rtStore.get(cntx,
+                                    IRoutingDecision.CONTEXT_DECISION);
+                        }
+                        if (decision != null) {
+                            wildcard_hints = decision.getWildcards();
+                        } else {
+                            // L2 only wildcard if there is no prior route decision
+                            wildcard_hints = ((Integer) sw
+                                    .getAttribute(IOFSwitch.PROP_FASTWILDCARDS))
+                                    .intValue()
+                                    & ~OFMatch.OFPFW_IN_PORT
+                                    & ~OFMatch.OFPFW_DL_VLAN
+                                    & ~OFMatch.OFPFW_DL_SRC
+                                    & ~OFMatch.OFPFW_DL_DST
+                                    & ~OFMatch.OFPFW_NW_SRC_MASK
+                                    & ~OFMatch.OFPFW_NW_DST_MASK;
+                        }
+
+                        pushRoute(route, match, wildcard_hints, pi, sw.getId(), cookie,
+                                  cntx, requestFlowRemovedNotifn, false,
+                                  OFFlowMod.OFPFC_ADD);
+                    }
+                }
+                iSrcDaps++;
+                iDstDaps++;
+            } else if (srcVsDest < 0) {
+                iSrcDaps++;
+            } else {
+                iDstDaps++;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.floodlightcontroller.topology;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded worker pool taking the BDDP floods off the OpenFlow I/O threads.
+ * Every switch is mapped to one single-threaded stripe so the floods of a
+ * switch keep their order. When the queue of a stripe is full the flood is
+ * dropped and counted rather than blocking the I/O thread; discovery
+ * recovers at the next LLDP round.
+ */
+public class BddpFloodPool {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	protected final ThreadPoolExecutor[] stripes;
+	protected final AtomicLong submitted = new AtomicLong();
+	protected final AtomicLong dropped = new AtomicLong();
+
+	public BddpFloodPool(int threads, int queueSize) {
+		stripes = new ThreadPoolExecutor[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = "TopologyBDDP-" + i;
+			stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Queues the flood on the stripe of the switch. Returns false if it was
+	 * dropped.
+	 */
+	public boolean submit(long sw, Runnable flood) {
+		long h = sw * 0x9e3779b97f4a7c15L;
+		int stripe = (int) ((h ^ (h >>> 32)) & 0x7fffffff) % stripes.length;
+		try {
+			stripes[stripe].execute(flood);
+			submitted.incrementAndGet();
+			return true;
+		} catch (RejectedExecutionException e) {
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ThreadPoolExecutor stripe : stripes)
+			depth += stripe.getQueue().size();
+		return depth;
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void shutdown() {
+		for (ThreadPoolExecutor stripe : stripes)
+			stripe.shutdown();
+	}
+}
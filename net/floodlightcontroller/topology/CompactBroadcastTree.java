@@ -0,0 +1,133 @@
+package net.floodlightcontroller.topology;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * BroadcastTree stored as two int arrays indexed by dense switch index:
+ * the id of the next-hop link in the instance's LinkTable and the cost.
+ * Switches outside the tree have cost ABSENT. The map based view of
+ * BroadcastTree is only materialised by getLinks(), which existing
+ * callers use outside the per-route paths.
+ */
+public class CompactBroadcastTree extends BroadcastTree {
+
+	public static final int ABSENT = Integer.MIN_VALUE;
+
+	protected final SwitchIndex index;
+	protected final LinkTable linkTable;
+	protected final int[] nextLink;
+	protected final int[] costs;
+	protected final int nodeCount;
+
+	public CompactBroadcastTree(SwitchIndex index, LinkTable linkTable,
+			Map<Long, Link> nexthoplinks, Map<Long, Integer> cost) {
+		super(null, null);
+		this.index = index;
+		this.linkTable = linkTable;
+		nextLink = new int[index.size()];
+		costs = new int[index.size()];
+		for (int i = 0; i < nextLink.length; i++) {
+			nextLink[i] = -1;
+			costs[i] = ABSENT;
+		}
+		int count = 0;
+		for (Map.Entry<Long, Integer> entry : cost.entrySet()) {
+			int i = index.indexOf(entry.getKey());
+			if (i < 0)
+				continue;
+			costs[i] = entry.getValue();
+			Link link = nexthoplinks.get(entry.getKey());
+			if (link != null)
+				nextLink[i] = linkTable.idOf(link);
+			count++;
+		}
+		nodeCount = count;
+	}
+
+	@Override
+	public Link getTreeLinkAt(long node) {
+		int i = index.indexOf(node);
+		if (i < 0 || nextLink[i] < 0)
+			return null;
+		return linkTable.get(nextLink[i]);
+	}
+
+	@Override
+	public int getCost(long node) {
+		int i = index.indexOf(node);
+		if (i < 0 || costs[i] == ABSENT)
+			return -1;
+		return costs[i];
+	}
+
+	@Override
+	public HashMap<Long, Link> getLinks() {
+		HashMap<Long, Link> links = new HashMap<Long, Link>();
+		for (int i = 0; i < costs.length; i++) {
+			if (costs[i] == ABSENT)
+				continue;
+			links.put(index.getSwitch(i),
+					nextLink[i] < 0 ? null : linkTable.get(nextLink[i]));
+		}
+		return links;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Whether the row can be used as is by a table sharing the index and
+	 * the link table.
+	 */
+	public boolean shares(SwitchIndex index, LinkTable linkTable) {
+		return this.index == index && this.linkTable == linkTable;
+	}
+
+	public int[] getNextLinks() {
+		return nextLink;
+	}
+
+	/**
+	 * Compares the next hops with another tree without materialising it.
+	 */
+	public boolean sameLinks(BroadcastTree other) {
+		int otherCount;
+		if (other instanceof CompactBroadcastTree)
+			otherCount = ((CompactBroadcastTree) other).getNodeCount();
+		else if (other.getLinks() != null)
+			otherCount = other.getLinks().size();
+		else
+			return false;
+		if (otherCount != nodeCount)
+			return false;
+		for (int i = 0; i < costs.length; i++) {
+			if (costs[i] == ABSENT)
+				continue;
+			long node = index.getSwitch(i);
+			Link link = nextLink[i] < 0 ? null : linkTable.get(nextLink[i]);
+			Link otherLink = other.getTreeLinkAt(node);
+			if (link == null ? otherLink != null : !link.equals(otherLink))
+				return false;
+			if (otherLink == null && other.getCost(node) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < costs.length; i++) {
+			if (costs[i] == ABSENT)
+				continue;
+			sb.append("[" + index.getSwitch(i) + ": cost=" + costs[i] + ", "
+					+ (nextLink[i] < 0 ? null : linkTable.get(nextLink[i])) + "]");
+		}
+		return sb.toString();
+	}
+}
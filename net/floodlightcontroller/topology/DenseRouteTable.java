@@ -0,0 +1,117 @@
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
+
+/**
+ * All-pairs next hops materialised from the destination trees. Row d of
+ * nextLink holds, for every switch index, the id of the link to take
+ * towards destination d, or -1. Links are stored as parallel primitive
+ * arrays so building a route is a walk over arrays without hashing.
+ *
+ * Memory is 4 bytes per switch pair, which is fine up to a few thousand
+ * switches; bigger fabrics keep walking the trees.
+ */
+public class DenseRouteTable {
+
+	public static final int MAX_SWITCHES = 4096;
+
+	protected final SwitchIndex index;
+	protected final int[][] nextLink;
+	protected final long[] linkSrc;
+	protected final short[] linkSrcPort;
+	protected final long[] linkDst;
+	protected final short[] linkDstPort;
+	protected final int[] linkDstIndex;
+
+	public DenseRouteTable(SwitchIndex index, LinkTable linkTable,
+			Map<Long, BroadcastTree> destinationRootedTrees) {
+		this.index = index;
+		int n = index.size();
+		nextLink = new int[n][];
+
+		for (Map.Entry<Long, BroadcastTree> entry : destinationRootedTrees.entrySet()) {
+			int d = index.indexOf(entry.getKey());
+			BroadcastTree tree = entry.getValue();
+			if (d < 0)
+				continue;
+			// Compact trees already are rows of the table
+			if (tree instanceof CompactBroadcastTree
+					&& ((CompactBroadcastTree) tree).shares(index, linkTable)) {
+				nextLink[d] = ((CompactBroadcastTree) tree).getNextLinks();
+				continue;
+			}
+			Map<Long, Link> treeLinks = tree.getLinks();
+			if (treeLinks == null)
+				continue;
+			int[] row = new int[n];
+			for (int i = 0; i < n; i++)
+				row[i] = -1;
+			for (Map.Entry<Long, Link> hop : treeLinks.entrySet()) {
+				int s = index.indexOf(hop.getKey());
+				Link link = hop.getValue();
+				if (s < 0 || link == null)
+					continue;
+				row[s] = linkTable.idOf(link);
+			}
+			nextLink[d] = row;
+		}
+
+		int size = linkTable.size();
+		linkSrc = new long[size];
+		linkSrcPort = new short[size];
+		linkDst = new long[size];
+		linkDstPort = new short[size];
+		linkDstIndex = new int[size];
+		for (int i = 0; i < size; i++) {
+			Link link = linkTable.get(i);
+			linkSrc[i] = link.getSrc();
+			linkSrcPort[i] = link.getSrcPort();
+			linkDst[i] = link.getDst();
+			linkDstPort[i] = link.getDstPort();
+			linkDstIndex[i] = index.indexOf(link.getDst());
+		}
+	}
+
+	/**
+	 * Whether the table has the tree of the destination; if not the caller
+	 * must fall back to the trees.
+	 */
+	public boolean covers(long dstId) {
+		int d = index.indexOf(dstId);
+		return d >= 0 && nextLink[d] != null;
+	}
+
+	/**
+	 * Same result as TopologyInstance.buildroute for a covered destination.
+	 */
+	public Route buildRoute(RouteId id, long srcId, long dstId) {
+		int s = index.indexOf(srcId);
+		int d = index.indexOf(dstId);
+		if (s < 0 || d < 0 || nextLink[d] == null || s == d)
+			return null;
+		int[] row = nextLink[d];
+		if (row[s] < 0)
+			return null;
+
+		List<NodePortTuple> switchPorts = new ArrayList<NodePortTuple>();
+		int current = s;
+		for (int hops = 0; current != d; hops++) {
+			int l = row[current];
+			if (l < 0 || hops >= row.length)
+				return null;
+			switchPorts.add(new NodePortTuple(linkSrc[l], linkSrcPort[l]));
+			switchPorts.add(new NodePortTuple(linkDst[l], linkDstPort[l]));
+			current = linkDstIndex[l];
+			if (current < 0)
+				return null;
+		}
+		return new Route(id, switchPorts);
+	}
+}
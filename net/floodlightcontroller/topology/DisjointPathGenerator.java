@@ -0,0 +1,197 @@
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+import edu.asu.emit.qyan.alg.model.Path;
+import edu.asu.emit.qyan.alg.model.Vertex;
+import edu.asu.emit.qyan.alg.model.abstracts.BaseVertex;
+
+/**
+ * Alternative to Yen's K shortest paths producing diverse candidates from
+ * root to node. Disjoint modes run successive Dijkstra searches that exclude
+ * the links (both directions) or the transit switches of the paths found so
+ * far; when fewer than K disjoint paths exist, the set is topped up by the
+ * overlap penalty search. The penalty mode inflates the cost of every link
+ * already used by OVERLAP_PENALTY per use.
+ *
+ * Path weights are the real, unpenalised costs so the candidates can be
+ * scored by the same fuzzy selection as Yen's.
+ */
+public class DisjointPathGenerator {
+
+	public static final double OVERLAP_PENALTY = 1.0;
+
+	public enum CandidateMode {
+		YEN, LINK_DISJOINT, NODE_DISJOINT, OVERLAP_PENALTY
+	}
+
+	protected static class NodeDist implements Comparable<NodeDist> {
+		protected final long node;
+		protected final double dist;
+
+		public NodeDist(long node, double dist) {
+			this.node = node;
+			this.dist = dist;
+		}
+
+		@Override
+		public int compareTo(NodeDist o) {
+			return Double.compare(dist, o.dist);
+		}
+	}
+
+	public static CandidateMode parseMode(String mode) {
+		return CandidateMode.valueOf(mode.trim().toUpperCase().replace('-', '_'));
+	}
+
+	public static List<Path> calculate(Cluster c, Long root, Long node,
+			Map<Link, Integer> linkCost, int k, CandidateMode mode) {
+		List<Path> paths = new ArrayList<Path>(k);
+		Set<NodePortTuple> bannedPorts = new HashSet<NodePortTuple>();
+		Set<Long> bannedNodes = new HashSet<Long>();
+		Map<NodePortTuple, Integer> uses = new HashMap<NodePortTuple, Integer>();
+
+		if (mode != CandidateMode.OVERLAP_PENALTY) {
+			while (paths.size() < k) {
+				List<Link> links = shortestPath(c, root, node, linkCost,
+						bannedPorts, bannedNodes, null);
+				if (links == null)
+					break;
+				paths.add(toPath(root, links, linkCost));
+				for (Link link : links) {
+					countUse(uses, link);
+					// Node-disjoint paths are link-disjoint as well
+					bannedPorts.add(new NodePortTuple(link.getSrc(), link.getSrcPort()));
+					bannedPorts.add(new NodePortTuple(link.getDst(), link.getDstPort()));
+					if (mode == CandidateMode.NODE_DISJOINT && link.getDst() != node)
+						bannedNodes.add(link.getDst());
+				}
+			}
+		}
+
+		int attempts = 0;
+		while (paths.size() < k && attempts++ < 2 * k) {
+			List<Link> links = shortestPath(c, root, node, linkCost,
+					Collections.<NodePortTuple> emptySet(),
+					Collections.<Long> emptySet(), uses);
+			if (links == null)
+				break;
+			for (Link link : links)
+				countUse(uses, link);
+			Path path = toPath(root, links, linkCost);
+			if (!containsPath(paths, path))
+				paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * Dijkstra from root to node skipping banned switch ports and switches.
+	 * Returns the links in order, or null if node cannot be reached.
+	 */
+	protected static List<Link> shortestPath(Cluster c, long root, long node,
+			Map<Link, Integer> linkCost, Set<NodePortTuple> bannedPorts,
+			Set<Long> bannedNodes, Map<NodePortTuple, Integer> uses) {
+		Map<Long, Double> dist = new HashMap<Long, Double>();
+		Map<Long, Link> prev = new HashMap<Long, Link>();
+		Set<Long> seen = new HashSet<Long>();
+		PriorityQueue<NodeDist> nodeq = new PriorityQueue<NodeDist>();
+		dist.put(root, 0.0);
+		nodeq.add(new NodeDist(root, 0));
+
+		while (!nodeq.isEmpty()) {
+			NodeDist n = nodeq.poll();
+			if (!seen.add(n.node))
+				continue;
+			if (n.node == node)
+				break;
+			Set<Link> links = c.getLinks().get(n.node);
+			if (links == null)
+				continue;
+			for (Link link : links) {
+				long neighbor = link.getDst();
+				if (seen.contains(neighbor) || bannedNodes.contains(neighbor))
+					continue;
+				NodePortTuple srcNpt = new NodePortTuple(link.getSrc(), link.getSrcPort());
+				NodePortTuple dstNpt = new NodePortTuple(link.getDst(), link.getDstPort());
+				if (bannedPorts.contains(srcNpt) || bannedPorts.contains(dstNpt))
+					continue;
+				double w = weight(link, linkCost);
+				if (uses != null) {
+					Integer used = uses.get(srcNpt);
+					if (used != null)
+						w *= 1 + OVERLAP_PENALTY * used;
+				}
+				double ndist = n.dist + w;
+				Double current = dist.get(neighbor);
+				if (current == null || ndist < current) {
+					dist.put(neighbor, ndist);
+					prev.put(neighbor, link);
+					nodeq.add(new NodeDist(neighbor, ndist));
+				}
+			}
+		}
+
+		if (!seen.contains(node) || root == node)
+			return null;
+		LinkedList<Link> result = new LinkedList<Link>();
+		long current = node;
+		while (current != root) {
+			Link link = prev.get(current);
+			result.addFirst(link);
+			current = link.getSrc();
+		}
+		return result;
+	}
+
+	protected static double weight(Link link, Map<Link, Integer> linkCost) {
+		if (linkCost == null || linkCost.get(link) == null)
+			return 1;
+		return linkCost.get(link);
+	}
+
+	protected static void countUse(Map<NodePortTuple, Integer> uses, Link link) {
+		NodePortTuple srcNpt = new NodePortTuple(link.getSrc(), link.getSrcPort());
+		NodePortTuple dstNpt = new NodePortTuple(link.getDst(), link.getDstPort());
+		Integer used = uses.get(srcNpt);
+		uses.put(srcNpt, (used == null) ? 1 : used + 1);
+		used = uses.get(dstNpt);
+		uses.put(dstNpt, (used == null) ? 1 : used + 1);
+	}
+
+	protected static Path toPath(long root, List<Link> links,
+			Map<Link, Integer> linkCost) {
+		List<BaseVertex> vertices = new ArrayList<BaseVertex>(links.size() + 1);
+		vertices.add(new Vertex(root));
+		double weight = 0;
+		for (Link link : links) {
+			vertices.add(new Vertex(link.getDst()));
+			weight += weight(link, linkCost);
+		}
+		return new Path(vertices, weight);
+	}
+
+	protected static boolean containsPath(List<Path> paths, Path path) {
+		for (Path other : paths) {
+			List<BaseVertex> a = other.get_vertices();
+			List<BaseVertex> b = path.get_vertices();
+			if (a.size() != b.size())
+				continue;
+			boolean same = true;
+			for (int i = 0; i < a.size() && same; i++)
+				same = a.get(i).get_id() == b.get(i).get_id();
+			if (same)
+				return true;
+		}
+		return false;
+	}
+}
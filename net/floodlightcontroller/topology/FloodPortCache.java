@@ -0,0 +1,80 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Ports out of which BDDP floods leave every switch: the enabled ports of
+ * the switch minus the ports with links that are not broadcast domain ports.
+ * The sets are immutable and computed once per topology instance; port
+ * status changes replace the set of the switch.
+ */
+public class FloodPortCache {
+
+	protected static class Generation {
+		protected final TopologyInstanceFuzzyBalancer instance;
+		protected final ConcurrentMap<Long, Set<Short>> floodPorts;
+
+		protected Generation(TopologyInstanceFuzzyBalancer instance) {
+			this.instance = instance;
+			this.floodPorts = new ConcurrentHashMap<Long, Set<Short>>();
+		}
+	}
+
+	protected volatile Generation generation = new Generation(null);
+
+	/**
+	 * Flood ports of the switch for the given instance, without the in-port
+	 * exclusion. Returns null if the switch has no enabled ports.
+	 */
+	public Set<Short> getFloodPorts(IOFSwitch sw,
+			TopologyInstanceFuzzyBalancer ti) {
+		Generation g = generation;
+		if (g.instance != ti) {
+			g = new Generation(ti);
+			generation = g;
+		}
+		Set<Short> ports = g.floodPorts.get(sw.getId());
+		if (ports == null) {
+			ports = computeFloodPorts(sw, ti);
+			if (ports == null)
+				return null;
+			g.floodPorts.put(sw.getId(), ports);
+		}
+		return ports;
+	}
+
+	/**
+	 * Recomputes the set of a switch whose ports changed.
+	 */
+	public void switchPortChanged(IOFSwitch sw) {
+		Generation g = generation;
+		if (g.instance == null)
+			return;
+		Set<Short> ports = computeFloodPorts(sw, g.instance);
+		if (ports == null)
+			g.floodPorts.remove(sw.getId());
+		else
+			g.floodPorts.put(sw.getId(), ports);
+	}
+
+	public void removeSwitch(long sw) {
+		generation.floodPorts.remove(sw);
+	}
+
+	protected static Set<Short> computeFloodPorts(IOFSwitch sw,
+			TopologyInstanceFuzzyBalancer ti) {
+		Collection<Short> enabledPorts = sw.getEnabledPortNumbers();
+		if (enabledPorts == null)
+			return null;
+		Set<Short> ports = new HashSet<Short>(enabledPorts);
+		ports.removeAll(ti.getNonBroadcastPorts(sw.getId()));
+		return Collections.unmodifiableSet(ports);
+	}
+}
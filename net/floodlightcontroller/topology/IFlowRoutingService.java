@@ -0,0 +1,37 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Map;
+
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Routing for single flows. With flow-hash spreading enabled, flows
+ * between the same attachment points are spread over the near-equal
+ * candidates by a hash of their headers. With flap damping enabled, the
+ * flap statistics of the selected paths are kept per switch pair.
+ */
+public interface IFlowRoutingService extends IRoutingService {
+
+	/**
+	 * Route for the flow described by the match, pinned by its addresses,
+	 * protocol and transport ports.
+	 */
+	public Route getRoute(long src, short srcPort, long dst, short dstPort,
+			OFMatch match, boolean tunnelEnabled);
+
+	/**
+	 * Flap statistics of the selected path from src to dst, null if the pair
+	 * is unknown or flap damping is disabled.
+	 */
+	public RouteFlapDamping.FlapState getFlapStatistics(long src, long dst);
+
+	/**
+	 * Flap statistics of every known switch pair, empty if flap damping is
+	 * disabled.
+	 */
+	public Map<RouteId, RouteFlapDamping.FlapState> getFlapStatistics();
+}
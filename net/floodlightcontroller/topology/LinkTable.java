@@ -0,0 +1,60 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Dense ids for the links of an instance, shared by its compact trees and
+ * its dense route table. Ids are only ever appended: lookups of a known
+ * link and reads by id take no lock, so the per-hop reads of the trees
+ * stay lock-free while lazy trees keep adding links.
+ */
+public class LinkTable {
+
+	protected static final int INITIAL_CAPACITY = 64;
+
+	protected final ConcurrentMap<Link, Integer> ids;
+	// Replaced by a larger copy when full, slots are written once
+	protected volatile Link[] links;
+	protected volatile int size;
+
+	public LinkTable() {
+		ids = new ConcurrentHashMap<Link, Integer>();
+		links = new Link[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Id of the link, assigning a new one if needed.
+	 */
+	public int idOf(Link link) {
+		Integer id = ids.get(link);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			id = ids.get(link);
+			if (id == null) {
+				id = size;
+				Link[] l = links;
+				if (id == l.length)
+					l = Arrays.copyOf(l, l.length * 2);
+				l[id] = link;
+				// Publishes the slot before the id can be seen
+				links = l;
+				size = id + 1;
+				ids.put(link, id);
+			}
+			return id;
+		}
+	}
+
+	public Link get(int id) {
+		return links[id];
+	}
+
+	public int size() {
+		return size;
+	}
+}
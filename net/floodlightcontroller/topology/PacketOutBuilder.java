@@ -0,0 +1,93 @@
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+/**
+ * Builds the multi-port packet outs of the floods. The output actions are
+ * immutable and cached per switch and excluded in-port with the port set
+ * they were built for, so repeated floods out of the same ports only
+ * allocate the message. Port sets are usually the very sets of the flood
+ * port cache, compared by reference first.
+ */
+public class PacketOutBuilder {
+
+	protected static class CachedActions {
+		protected final Set<Short> ports;
+		protected final List<OFAction> actions;
+		protected final short actionsLength;
+
+		protected CachedActions(Set<Short> ports) {
+			List<OFAction> list = new ArrayList<OFAction>(ports.size());
+			for (short p : ports)
+				list.add(new OFActionOutput(p, (short) 0));
+			this.ports = ports;
+			this.actions = Collections.unmodifiableList(list);
+			this.actionsLength = (short) (OFActionOutput.MINIMUM_LENGTH * ports
+					.size());
+		}
+
+		protected boolean isFor(Set<Short> other) {
+			return ports == other || ports.equals(other);
+		}
+	}
+
+	protected IFloodlightProviderService floodlightProvider;
+	protected ConcurrentMap<NodePortTuple, CachedActions> cache;
+
+	public PacketOutBuilder(IFloodlightProviderService floodlightProvider) {
+		this.floodlightProvider = floodlightProvider;
+		this.cache = new ConcurrentHashMap<NodePortTuple, CachedActions>();
+	}
+
+	/**
+	 * Packet out of the given data on the ports of the switch. The excluded
+	 * port, OFPP_NONE if none, only tells apart the port sets of a switch
+	 * flooding its own packet-ins from the others.
+	 */
+	public OFPacketOut build(long sw, short excludedPort, Set<Short> ports,
+			byte[] packetData) {
+		NodePortTuple key = new NodePortTuple(sw, excludedPort);
+		CachedActions cached = cache.get(key);
+		if (cached == null || !cached.isFor(ports)) {
+			cached = new CachedActions(ports);
+			cache.put(key, cached);
+		}
+
+		OFPacketOut po = (OFPacketOut) floodlightProvider.getOFMessageFactory()
+				.getMessage(OFType.PACKET_OUT);
+		po.setActions(cached.actions);
+		po.setActionsLength(cached.actionsLength);
+		po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		po.setInPort(OFPort.OFPP_NONE.getValue());
+		po.setPacketData(packetData);
+		po.setLength((short) (OFPacketOut.MINIMUM_LENGTH + cached.actionsLength
+				+ packetData.length));
+		return po;
+	}
+
+	public void removeSwitch(long sw) {
+		Iterator<NodePortTuple> it = cache.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getNodeId() == sw)
+				it.remove();
+		}
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+}
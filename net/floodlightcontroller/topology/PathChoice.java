@@ -0,0 +1,40 @@
+package net.floodlightcontroller.topology;
+
+import java.util.List;
+
+/**
+ * One of the K candidates of a switch pair as seen by the REST API: the
+ * switches from source to destination, the path weight, its fuzzy score
+ * (lower is better) and whether it is the selected path.
+ */
+public class PathChoice {
+
+	protected final List<Long> switches;
+	protected final double weight;
+	protected final double score;
+	protected final boolean selected;
+
+	public PathChoice(List<Long> switches, double weight, double score,
+			boolean selected) {
+		this.switches = switches;
+		this.weight = weight;
+		this.score = score;
+		this.selected = selected;
+	}
+
+	public List<Long> getSwitches() {
+		return switches;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	public double getScore() {
+		return score;
+	}
+
+	public boolean isSelected() {
+		return selected;
+	}
+}
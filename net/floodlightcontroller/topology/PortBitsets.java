@@ -0,0 +1,65 @@
+package net.floodlightcontroller.topology;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Blocked, broadcast domain and tunnel ports of an instance as one bitset
+ * per switch, indexed by the compact switch index and the unsigned port
+ * number. Checks on the packet-in path neither allocate nor hash.
+ * Immutable once built.
+ */
+public class PortBitsets {
+
+	protected final SwitchIndex index;
+	protected final BitSet[] blocked;
+	protected final BitSet[] broadcast;
+	protected final BitSet[] tunnel;
+
+	public PortBitsets(Collection<Long> switches,
+			Set<NodePortTuple> blockedPorts,
+			Set<NodePortTuple> broadcastDomainPorts,
+			Set<NodePortTuple> tunnelPorts) {
+		index = new SwitchIndex(switches);
+		blocked = build(blockedPorts);
+		broadcast = build(broadcastDomainPorts);
+		tunnel = build(tunnelPorts);
+	}
+
+	protected BitSet[] build(Set<NodePortTuple> ports) {
+		BitSet[] bits = new BitSet[index.size()];
+		for (NodePortTuple npt : ports) {
+			int i = index.indexOf(npt.getNodeId());
+			if (i < 0)
+				continue;
+			if (bits[i] == null)
+				bits[i] = new BitSet();
+			bits[i].set(npt.getPortId() & 0xffff);
+		}
+		return bits;
+	}
+
+	protected boolean get(BitSet[] bits, long sw, short port) {
+		int i = index.indexOf(sw);
+		if (i < 0 || bits[i] == null)
+			return false;
+		return bits[i].get(port & 0xffff);
+	}
+
+	public boolean isAllowed(long sw, short port) {
+		return !get(blocked, sw, port);
+	}
+
+	public boolean isBlocked(long sw, short port) {
+		return get(blocked, sw, port);
+	}
+
+	public boolean isBroadcastDomainPort(long sw, short port) {
+		return get(broadcast, sw, port);
+	}
+
+	public boolean isTunnelPort(long sw, short port) {
+		return get(tunnel, sw, port);
+	}
+}
@@ -0,0 +1,175 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.routing.Route;
+
+/**
+ * Route cache shared by successive topology instances. Every entry carries
+ * the version of the destination tree it was built from; it stays valid as
+ * long as the current instance has the same version for that tree, so cost
+ * epochs only invalidate the routes whose trees actually changed.
+ *
+ * Lookups are lock-free. When the cache grows past its capacity, stale
+ * entries are swept first, then arbitrary ones.
+ */
+public class RouteCache {
+
+	public static final int MIN_CAPACITY = 1000;
+	public static final int MAX_CAPACITY = 1 << 18;
+
+	protected ConcurrentMap<RouteKey, Entry> routes;
+	protected volatile int capacity = MIN_CAPACITY;
+
+	protected AtomicLong hits = new AtomicLong();
+	protected AtomicLong misses = new AtomicLong();
+	protected AtomicLong invalidations = new AtomicLong();
+	protected AtomicLong evictions = new AtomicLong();
+
+	public static class RouteKey {
+		protected final long src;
+		protected final short srcPort;
+		protected final long dst;
+		protected final short dstPort;
+		protected final boolean tunnelEnabled;
+
+		public RouteKey(long src, short srcPort, long dst, short dstPort,
+				boolean tunnelEnabled) {
+			this.src = src;
+			this.srcPort = srcPort;
+			this.dst = dst;
+			this.dstPort = dstPort;
+			this.tunnelEnabled = tunnelEnabled;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (src ^ (src >>> 32));
+			result = prime * result + srcPort;
+			result = prime * result + (int) (dst ^ (dst >>> 32));
+			result = prime * result + dstPort;
+			result = prime * result + (tunnelEnabled ? 1231 : 1237);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RouteKey))
+				return false;
+			RouteKey other = (RouteKey) obj;
+			return src == other.src && srcPort == other.srcPort
+					&& dst == other.dst && dstPort == other.dstPort
+					&& tunnelEnabled == other.tunnelEnabled;
+		}
+	}
+
+	protected static class Entry {
+		protected final Route route;
+		protected final long treeVersion;
+
+		protected Entry(Route route, long treeVersion) {
+			this.route = route;
+			this.treeVersion = treeVersion;
+		}
+	}
+
+	public RouteCache() {
+		routes = new ConcurrentHashMap<RouteKey, Entry>();
+	}
+
+	/**
+	 * Returns the cached route if it was built from the tree the instance
+	 * currently has for the destination, null otherwise.
+	 */
+	public Route get(RouteKey key, TopologyInstanceFuzzyBalancer ti) {
+		Entry entry = routes.get(key);
+		if (entry != null) {
+			if (entry.treeVersion == ti.getTreeVersion(key.dst)) {
+				hits.incrementAndGet();
+				return entry.route;
+			}
+			if (routes.remove(key, entry))
+				invalidations.incrementAndGet();
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(RouteKey key, Route route, TopologyInstanceFuzzyBalancer ti) {
+		long treeVersion = ti.getTreeVersion(key.dst);
+		if (route == null || treeVersion < 0)
+			return;
+		routes.put(key, new Entry(route, treeVersion));
+		if (routes.size() > capacity)
+			evict(ti);
+	}
+
+	protected void evict(TopologyInstanceFuzzyBalancer ti) {
+		Iterator<Map.Entry<RouteKey, Entry>> it = routes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<RouteKey, Entry> e = it.next();
+			// Only computed trees, evicting must not compute lazy ones
+			long version = ti.getComputedTreeVersion(e.getKey().dst);
+			if (version >= 0 && e.getValue().treeVersion != version) {
+				it.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+		int target = capacity - capacity / 4;
+		it = routes.entrySet().iterator();
+		while (routes.size() > target && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sizes the cache to the number of switch pairs of the fabric, within
+	 * MIN_CAPACITY and MAX_CAPACITY.
+	 */
+	public void setCapacityForSwitches(int switchCount) {
+		long pairs = (long) switchCount * switchCount;
+		capacity = (int) Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, pairs));
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return routes.size();
+	}
+
+	public void clear() {
+		routes.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
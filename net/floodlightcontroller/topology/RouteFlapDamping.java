@@ -0,0 +1,213 @@
+package net.floodlightcontroller.topology;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.routing.RouteId;
+import edu.asu.emit.qyan.alg.model.Path;
+import edu.asu.emit.qyan.alg.model.abstracts.BaseVertex;
+
+/**
+ * Per switch pair flap damping of the selected path, in the style of BGP
+ * route flap damping. Every change of the selected path adds a penalty
+ * which decays exponentially; a new winner replaces the incumbent only if
+ * its fuzzy score is lower by a margin that grows with the penalty.
+ *
+ * The state outlives topology instances, it is owned by the topology
+ * manager and handed to every new instance.
+ */
+public class RouteFlapDamping {
+
+	public static final double FLAP_PENALTY = 1000;
+	public static final long HALF_LIFE = 120000; // milliseconds
+	public static final double BASE_MARGIN = 0.02;
+	public static final double MARGIN_PER_FLAP = 0.05;
+
+	protected long halfLife = HALF_LIFE;
+	protected double baseMargin = BASE_MARGIN;
+	protected double marginPerFlap = MARGIN_PER_FLAP;
+
+	protected ConcurrentMap<RouteId, FlapState> states;
+
+	public static class FlapState {
+		protected long[] incumbent;
+		protected double penalty = 0;
+		protected long lastUpdate;
+		protected long lastFlap = 0;
+		protected int flapCount = 0;
+		protected int suppressedCount = 0;
+
+		protected FlapState copy() {
+			FlapState copy = new FlapState();
+			copy.incumbent = incumbent;
+			copy.penalty = penalty;
+			copy.lastUpdate = lastUpdate;
+			copy.lastFlap = lastFlap;
+			copy.flapCount = flapCount;
+			copy.suppressedCount = suppressedCount;
+			return copy;
+		}
+
+		public long[] getIncumbent() {
+			return incumbent;
+		}
+
+		public double getPenalty() {
+			return penalty;
+		}
+
+		public long getLastFlap() {
+			return lastFlap;
+		}
+
+		public int getFlapCount() {
+			return flapCount;
+		}
+
+		public int getSuppressedCount() {
+			return suppressedCount;
+		}
+	}
+
+	public RouteFlapDamping() {
+		states = new ConcurrentHashMap<RouteId, FlapState>();
+	}
+
+	public RouteFlapDamping(long halfLife, double baseMargin,
+			double marginPerFlap) {
+		this();
+		this.halfLife = halfLife;
+		this.baseMargin = baseMargin;
+		this.marginPerFlap = marginPerFlap;
+	}
+
+	/**
+	 * Returns the index of the path to use from src to dst, given the fuzzy
+	 * scores of the candidates and the index of the undamped winner.
+	 */
+	public int select(long src, long dst, List<Path> candidates,
+			double[] scores, int winner) {
+		RouteId id = new RouteId(src, dst);
+		long now = System.currentTimeMillis();
+		FlapState state = states.get(id);
+		if (state == null) {
+			FlapState newState = new FlapState();
+			newState.incumbent = pathIds(candidates.get(winner));
+			newState.lastUpdate = now;
+			state = states.putIfAbsent(id, newState);
+			if (state == null)
+				return winner;
+		}
+
+		synchronized (state) {
+			decay(state, now);
+			int incumbent = -1;
+			for (int i = 0; i < candidates.size(); i++) {
+				if (samePath(state.incumbent, candidates.get(i))) {
+					incumbent = i;
+					break;
+				}
+			}
+			if (incumbent == winner)
+				return winner;
+
+			double margin = baseMargin + marginPerFlap * state.penalty
+					/ FLAP_PENALTY;
+			if (incumbent >= 0 && !(scores[winner] + margin < scores[incumbent])) {
+				state.suppressedCount++;
+				return incumbent;
+			}
+
+			// Either the winner is clearly better or the incumbent is gone
+			state.incumbent = pathIds(candidates.get(winner));
+			state.penalty += FLAP_PENALTY;
+			state.flapCount++;
+			state.lastFlap = now;
+			return winner;
+		}
+	}
+
+	/**
+	 * Drops the state of pairs whose penalty has decayed and that were not
+	 * selected for a while.
+	 */
+	public void prune() {
+		long now = System.currentTimeMillis();
+		Iterator<FlapState> it = states.values().iterator();
+		while (it.hasNext()) {
+			FlapState state = it.next();
+			synchronized (state) {
+				if (now - state.lastUpdate > 10 * halfLife)
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Copy of the state of the pair with the penalty decayed to now. Reading
+	 * the statistics leaves the state untouched, so that it is still pruned.
+	 */
+	public FlapState getStatistics(long src, long dst) {
+		FlapState state = states.get(new RouteId(src, dst));
+		if (state == null)
+			return null;
+		synchronized (state) {
+			return decayedCopy(state, System.currentTimeMillis());
+		}
+	}
+
+	public Map<RouteId, FlapState> getStatistics() {
+		long now = System.currentTimeMillis();
+		Map<RouteId, FlapState> result = new HashMap<RouteId, FlapState>();
+		for (Map.Entry<RouteId, FlapState> entry : states.entrySet()) {
+			FlapState state = entry.getValue();
+			synchronized (state) {
+				result.put(entry.getKey(), decayedCopy(state, now));
+			}
+		}
+		return result;
+	}
+
+	protected FlapState decayedCopy(FlapState state, long now) {
+		FlapState copy = state.copy();
+		copy.penalty = decayedPenalty(state, now);
+		return copy;
+	}
+
+	protected double decayedPenalty(FlapState state, long now) {
+		long elapsed = now - state.lastUpdate;
+		if (elapsed <= 0)
+			return state.penalty;
+		return state.penalty * Math.pow(0.5, (double) elapsed / halfLife);
+	}
+
+	protected void decay(FlapState state, long now) {
+		if (now > state.lastUpdate) {
+			state.penalty = decayedPenalty(state, now);
+			state.lastUpdate = now;
+		}
+	}
+
+	protected static long[] pathIds(Path path) {
+		List<BaseVertex> vertices = path.get_vertices();
+		long[] ids = new long[vertices.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = vertices.get(i).get_id();
+		return ids;
+	}
+
+	protected static boolean samePath(long[] ids, Path path) {
+		List<BaseVertex> vertices = path.get_vertices();
+		if (ids.length != vertices.size())
+			return false;
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] != vertices.get(i).get_id())
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,61 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Collection;
+
+/**
+ * Dense, compact index of switch ids. Lookups use open addressing on
+ * primitive arrays so they neither allocate nor box. Immutable once built.
+ */
+public class SwitchIndex {
+
+	protected final long[] ids;
+	protected final long[] keys;
+	protected final int[] values;
+	protected final int mask;
+
+	public SwitchIndex(Collection<Long> switches) {
+		ids = new long[switches.size()];
+		int tableSize = Integer.highestOneBit(Math.max(2, ids.length * 2 - 1)) << 1;
+		keys = new long[tableSize];
+		values = new int[tableSize];
+		mask = tableSize - 1;
+		for (int i = 0; i < values.length; i++)
+			values[i] = -1;
+
+		int index = 0;
+		for (long sw : switches) {
+			ids[index] = sw;
+			int slot = slot(sw);
+			while (values[slot] >= 0)
+				slot = (slot + 1) & mask;
+			keys[slot] = sw;
+			values[slot] = index++;
+		}
+	}
+
+	protected int slot(long sw) {
+		long h = sw * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Index of the switch, or -1 if it is not indexed.
+	 */
+	public int indexOf(long sw) {
+		int slot = slot(sw);
+		while (values[slot] >= 0) {
+			if (keys[slot] == sw)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public long getSwitch(int index) {
+		return ids[index];
+	}
+
+	public int size() {
+		return ids.length;
+	}
+}
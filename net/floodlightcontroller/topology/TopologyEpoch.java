@@ -0,0 +1,62 @@
+package net.floodlightcontroller.topology;
+
+/**
+ * Immutable snapshot of the published topology: both instances, published
+ * together, with the epoch counters and the publication time. Readers take
+ * the whole snapshot through a single volatile read so they never see the
+ * instances of two different publications.
+ */
+public class TopologyEpoch {
+
+	protected final TopologyInstanceFuzzyBalancer instance;
+	protected final TopologyInstanceFuzzyBalancer instanceWithoutTunnels;
+	// Incremented on every publication, provisional ones included
+	protected final long epoch;
+	// Incremented on every full rebuild, structural or cost-only
+	protected final long costEpoch;
+	// Incremented on every rebuild caused by link updates
+	protected final long structureEpoch;
+	// Incremented on every provisional failover publication
+	protected final long failoverEpoch;
+	protected final long timestamp;
+
+	public TopologyEpoch(TopologyInstanceFuzzyBalancer instance,
+			TopologyInstanceFuzzyBalancer instanceWithoutTunnels, long epoch,
+			long costEpoch, long structureEpoch, long failoverEpoch,
+			long timestamp) {
+		this.instance = instance;
+		this.instanceWithoutTunnels = instanceWithoutTunnels;
+		this.epoch = epoch;
+		this.costEpoch = costEpoch;
+		this.structureEpoch = structureEpoch;
+		this.failoverEpoch = failoverEpoch;
+		this.timestamp = timestamp;
+	}
+
+	public TopologyInstanceFuzzyBalancer getInstance(boolean tunnelEnabled) {
+		if (tunnelEnabled)
+			return instance;
+		else
+			return instanceWithoutTunnels;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getCostEpoch() {
+		return costEpoch;
+	}
+
+	public long getStructureEpoch() {
+		return structureEpoch;
+	}
+
+	public long getFailoverEpoch() {
+		return failoverEpoch;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+}
@@ -6,17 +6,32 @@
 
 package net.floodlightcontroller.topology;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.routing.BroadcastTree;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.routing.RouteId;
+import net.floodlightcontroller.topology.DisjointPathGenerator.CandidateMode;
 import net.floodlightcontroller.util.LRUHashMap;
 import net.sourceforge.jFuzzyLogic.membership.MembershipFunctionPieceWiseLinear;
 import net.sourceforge.jFuzzyLogic.membership.Value;
@@ -24,6 +39,7 @@ import net.sourceforge.jFuzzyLogic.membership.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.sut.fuzzybalancer.BalancerMetrics;
 import ru.sut.fuzzybalancer.IFuzzyBalancerService;
 import ru.sut.fuzzybalancer.RuleAccumulationMethodOWA;
 import edu.asu.emit.qyan.alg.control.YenTopKShortestPathsAlg;
@@ -43,9 +59,59 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
     public static final int MAX_LINK_WEIGHT = 10000;
     public static final int MAX_PATH_WEIGHT = Integer.MAX_VALUE - MAX_LINK_WEIGHT - 1;
     public static final int PATH_CACHE_SIZE = 1000;
+    public static final double SPREAD_TOLERANCE = 0.05;
+    public static final int K_PATHS = 3;
 
     protected IFuzzyBalancerService mpbalance;
     protected Map<Pair<Long, Long>, List<Pair<Path, Boolean>>> cacheMap = null;
+    protected boolean flowHashSpreading = false;
+    protected double spreadTolerance = SPREAD_TOLERANCE;
+    protected RouteFlapDamping flapDamping = null;
+    protected CandidateMode candidateMode = CandidateMode.YEN;
+    // Backups are only computed for fast failover
+    protected boolean fastFailover = false;
+    // Backup next hop of every switch, per destination
+    protected Map<Long, Map<Long, Link>> backupNextHops;
+    // Links patched around in a provisional instance
+    protected Set<Link> failedLinks;
+    // Version of every destination tree, kept across instances while the
+    // tree does not change
+    protected Map<Long, Long> treeVersions;
+    protected TopologyInstanceFuzzyBalancer previous = null;
+    protected boolean denseRouteTableEnabled = false;
+    protected SwitchIndex switchIndex = null;
+    protected LinkTable linkTable = null;
+    protected boolean compactTrees = false;
+    protected DenseRouteTable denseRouteTable = null;
+    protected boolean lazyTrees = false;
+    protected int prewarmCount = 0;
+    protected Map<Link, Integer> linkCostSnapshot = null;
+    // Trees of the previous instance, consumed as versions are assigned
+    protected Map<Long, BroadcastTree> previousTrees = null;
+    protected Map<Long, Long> previousVersions = null;
+    // Runs the clusters in parallel, null to compute them in sequence
+    protected ExecutorService clusterExecutor = null;
+    // Budget of the eager tree computation in milliseconds, 0 for none
+    protected long computeBudget = 0;
+    // System.nanoTime() past which trees fall back to dijkstra, 0 for none
+    protected volatile long deadline = 0;
+    protected final AtomicLong fuzzyTreeNanos = new AtomicLong();
+    protected final AtomicInteger fuzzyTreeCount = new AtomicInteger();
+    // Roots whose tree was computed by dijkstra for lack of time
+    protected Set<Long> fallbackRoots =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    // Snapshot the switch ports and links come from, if any
+    protected TopologyStructure structure = null;
+    // Built on first use from the port sets, which do not change
+    protected volatile PortBitsets portBitsets = null;
+    // Time spent in the phases of the build, reported to the metrics
+    protected final AtomicLong treeNanos = new AtomicLong();
+    protected final AtomicLong kpathNanos = new AtomicLong();
+    protected final AtomicLong selectionNanos = new AtomicLong();
+    protected final AtomicLong yenCalls = new AtomicLong();
+    // Fallback roots of the previous instance, computed first
+    protected Set<Long> deferredRoots = Collections.emptySet();
+    protected static final AtomicLong treeVersionSequence = new AtomicLong();
 
     protected static Logger log = LoggerFactory.getLogger(TopologyInstanceFuzzyBalancer.class);
 
@@ -58,7 +124,10 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
         this.blockedPorts = new HashSet<NodePortTuple>();
         this.blockedLinks = new HashSet<Link>();
         this.mpbalance = mpbalance;
-        cacheMap = new HashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+        cacheMap = new ConcurrentHashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+        backupNextHops = new ConcurrentHashMap<Long, Map<Long, Link>>();
+        failedLinks = Collections.emptySet();
+        treeVersions = new ConcurrentHashMap<Long, Long>();
     }
     
     public TopologyInstanceFuzzyBalancer(Map<Long, Set<Short>> switchPorts,
@@ -73,7 +142,10 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
 		this.blockedPorts = new HashSet<NodePortTuple>();
 		this.blockedLinks = new HashSet<Link>();
         this.mpbalance = mpbalance;
-        cacheMap = new HashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+        cacheMap = new ConcurrentHashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+        backupNextHops = new ConcurrentHashMap<Long, Map<Long, Link>>();
+        failedLinks = Collections.emptySet();
+        treeVersions = new ConcurrentHashMap<Long, Long>();
 		clusters = new HashSet<Cluster>();
 		switchClusterMap = new HashMap<Long, Cluster>();
 	}
@@ -108,25 +180,754 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
             clusterBroadcastTrees = new HashMap<Long, BroadcastTree>();
             clusterBroadcastNodePorts = new HashMap<Long, Set<NodePortTuple>>();
             pathcache = new LRUHashMap<RouteId, Route>(PATH_CACHE_SIZE);
-            cacheMap = new HashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+            cacheMap = new ConcurrentHashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+            backupNextHops = new ConcurrentHashMap<Long, Map<Long, Link>>();
+            failedLinks = Collections.emptySet();
+            treeVersions = new ConcurrentHashMap<Long, Long>();
     }
-    
-    
-    
+
+    /**
+     * Shares the switch ports and links of the structure snapshot instead of
+     * copying them; the snapshot is immutable.
+     */
+    public TopologyInstanceFuzzyBalancer(TopologyStructure structure,
+            IFuzzyBalancerService mpbalance) {
+            this.structure = structure;
+            this.switches = structure.getSwitchPorts().keySet();
+            this.switchPorts = structure.getSwitchPorts();
+            this.switchPortLinks = structure.getSwitchPortLinks();
+            this.broadcastDomainPorts = structure.getBroadcastDomainPorts();
+            this.tunnelPorts = structure.getTunnelPorts();
+            this.blockedPorts = new HashSet<NodePortTuple>();
+            this.mpbalance = mpbalance;
+
+            blockedLinks = new HashSet<Link>();
+            clusters = new HashSet<Cluster>();
+            switchClusterMap = new HashMap<Long, Cluster>();
+            destinationRootedTrees = new HashMap<Long, BroadcastTree>();
+            clusterBroadcastTrees = new HashMap<Long, BroadcastTree>();
+            clusterBroadcastNodePorts = new HashMap<Long, Set<NodePortTuple>>();
+            pathcache = new LRUHashMap<RouteId, Route>(PATH_CACHE_SIZE);
+            cacheMap = new ConcurrentHashMap<Pair<Long, Long>, List<Pair<Path, Boolean>>>();
+            backupNextHops = new ConcurrentHashMap<Long, Map<Long, Link>>();
+            failedLinks = Collections.emptySet();
+            treeVersions = new ConcurrentHashMap<Long, Long>();
+    }
+
+    /**
+     * Shares every structure of the given instance except the destination
+     * trees and the path cache, which are copied so they can be patched.
+     */
+    protected TopologyInstanceFuzzyBalancer(TopologyInstanceFuzzyBalancer previous) {
+            this.switches = previous.switches;
+            this.switchPorts = previous.switchPorts;
+            this.blockedPorts = previous.blockedPorts;
+            this.switchPortLinks = previous.switchPortLinks;
+            this.broadcastDomainPorts = previous.broadcastDomainPorts;
+            this.tunnelPorts = previous.tunnelPorts;
+            this.blockedLinks = previous.blockedLinks;
+            this.clusters = previous.clusters;
+            this.switchClusterMap = previous.switchClusterMap;
+            this.clusterBroadcastTrees = previous.clusterBroadcastTrees;
+            this.clusterBroadcastNodePorts = previous.clusterBroadcastNodePorts;
+            this.mpbalance = previous.mpbalance;
+            this.cacheMap = previous.cacheMap;
+            this.flowHashSpreading = previous.flowHashSpreading;
+            this.spreadTolerance = previous.spreadTolerance;
+            this.flapDamping = previous.flapDamping;
+            this.candidateMode = previous.candidateMode;
+            this.fastFailover = previous.fastFailover;
+            this.backupNextHops = previous.backupNextHops;
+            this.failedLinks = previous.failedLinks;
+            this.treeVersions = new ConcurrentHashMap<Long, Long>(previous.treeVersions);
+            this.switchIndex = previous.switchIndex;
+            this.linkTable = previous.linkTable;
+            this.compactTrees = previous.compactTrees;
+            // The trees of a copy get patched, so it walks them instead
+            this.denseRouteTable = null;
+            this.lazyTrees = previous.lazyTrees;
+            this.structure = previous.structure;
+            this.portBitsets = previous.portBitsets;
+            this.fallbackRoots = previous.fallbackRoots;
+            this.linkCostSnapshot = previous.linkCostSnapshot;
+            if (lazyTrees) {
+                // Trees not computed yet are computed and patched on demand
+                destinationRootedTrees = new LazyTreeMap();
+                destinationRootedTrees.putAll(previous.destinationRootedTrees);
+            } else {
+                destinationRootedTrees = new HashMap<Long, BroadcastTree>(previous.destinationRootedTrees);
+            }
+            pathcache = new LRUHashMap<RouteId, Route>(PATH_CACHE_SIZE);
+    }
+
+    /**
+     * Destination trees computed on first request. Concurrent first requests
+     * for a destination wait for a single computation. Iteration only sees
+     * the trees computed so far.
+     */
+    protected class LazyTreeMap extends AbstractMap<Long, BroadcastTree> {
+        protected final ConcurrentMap<Long, FutureTask<BroadcastTree>> trees =
+                new ConcurrentHashMap<Long, FutureTask<BroadcastTree>>();
+        protected final ConcurrentMap<Long, AtomicLong> accessCounts =
+                new ConcurrentHashMap<Long, AtomicLong>();
+
+        @Override
+        public BroadcastTree get(Object key) {
+            if (!(key instanceof Long)) return null;
+            final Long root = (Long) key;
+            FutureTask<BroadcastTree> task = trees.get(root);
+            if (task == null) {
+                final Cluster c = switchClusterMap.get(root);
+                if (c == null || !c.links.containsKey(root)) return null;
+                FutureTask<BroadcastTree> newTask = new FutureTask<BroadcastTree>(
+                        new Callable<BroadcastTree>() {
+                            @Override
+                            public BroadcastTree call() {
+                                BroadcastTree tree = computeDestinationTree(c, root);
+                                assignTreeVersion(root, tree);
+                                return tree;
+                            }
+                        });
+                task = trees.putIfAbsent(root, newTask);
+                if (task == null) {
+                    task = newTask;
+                    newTask.run();
+                }
+            }
+            countAccess(root);
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                log.error("Error computing destination tree for " + root, e.getCause());
+                trees.remove(root, task);
+                return null;
+            }
+        }
+
+        protected void countAccess(Long root) {
+            AtomicLong count = accessCounts.get(root);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = accessCounts.putIfAbsent(root, newCount);
+                if (count == null)
+                    count = newCount;
+            }
+            count.incrementAndGet();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public BroadcastTree put(Long root, BroadcastTree tree) {
+            trees.put(root, completedTask(tree));
+            return null;
+        }
+
+        @Override
+        public void clear() {
+            trees.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<Long, BroadcastTree>> entrySet() {
+            Map<Long, BroadcastTree> computed = new HashMap<Long, BroadcastTree>();
+            for (Map.Entry<Long, FutureTask<BroadcastTree>> entry : trees.entrySet()) {
+                FutureTask<BroadcastTree> task = entry.getValue();
+                if (!task.isDone()) continue;
+                try {
+                    BroadcastTree tree = task.get();
+                    if (tree != null)
+                        computed.put(entry.getKey(), tree);
+                } catch (Exception e) {
+                    // failed computations are retried on the next get
+                }
+            }
+            return computed.entrySet();
+        }
+
+        /**
+         * Destinations by decreasing number of requests.
+         */
+        public List<Long> getHotDestinations(int count) {
+            List<Map.Entry<Long, AtomicLong>> entries =
+                    new ArrayList<Map.Entry<Long, AtomicLong>>(accessCounts.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<Long, AtomicLong>>() {
+                @Override
+                public int compare(Map.Entry<Long, AtomicLong> a, Map.Entry<Long, AtomicLong> b) {
+                    long ca = a.getValue().get();
+                    long cb = b.getValue().get();
+                    return (ca > cb) ? -1 : ((ca == cb) ? 0 : 1);
+                }
+            });
+            List<Long> hot = new ArrayList<Long>(Math.min(count, entries.size()));
+            for (int i = 0; i < entries.size() && i < count; i++)
+                hot.add(entries.get(i).getKey());
+            return hot;
+        }
+    }
+
+    protected static FutureTask<BroadcastTree> completedTask(final BroadcastTree tree) {
+        FutureTask<BroadcastTree> task = new FutureTask<BroadcastTree>(
+                new Callable<BroadcastTree>() {
+                    @Override
+                    public BroadcastTree call() {
+                        return tree;
+                    }
+                });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Rebuild for a cost epoch. Clusters, blocked links and broadcast trees
+     * do not depend on link costs, so they are taken by reference from the
+     * previous instance when it was computed on the same structure snapshot;
+     * only the destination trees are recomputed. Falls back to compute()
+     * otherwise. Returns whether the cost-only path was taken.
+     */
+    public boolean computeCostOnly() {
+        TopologyInstanceFuzzyBalancer prev = previous;
+        if (prev == null || prev.switchPortLinks != switchPortLinks
+                || prev.switchPorts != switchPorts) {
+            compute();
+            return false;
+        }
+        long start = System.nanoTime();
+        clusters = prev.clusters;
+        switchClusterMap = prev.switchClusterMap;
+        blockedLinks = prev.blockedLinks;
+        clusterBroadcastTrees = prev.clusterBroadcastTrees;
+        clusterBroadcastNodePorts = prev.clusterBroadcastNodePorts;
+        // Links failed over since the last structural epoch stay avoided
+        failedLinks = prev.failedLinks;
+        if (prev.blockedPorts.equals(blockedPorts))
+            portBitsets = prev.portBitsets;
+        calculateShortestPathTreeInClusters();
+        recordBuild(start);
+        return true;
+    }
+
+    @Override
+    public void compute() {
+        long start = System.nanoTime();
+        super.compute();
+        recordBuild(start);
+    }
+
+    /**
+     * Reports the build time by phase. Clusters covers everything but the
+     * destination trees, broadcast trees included.
+     */
+    protected void recordBuild(long start) {
+        BalancerMetrics metrics = (mpbalance == null) ? null : mpbalance.getMetrics();
+        if (metrics == null)
+            return;
+        long total = System.nanoTime() - start;
+        metrics.record(BalancerMetrics.INSTANCE_BUILD, total / 1000);
+        metrics.record(BalancerMetrics.INSTANCE_CLUSTERS,
+                Math.max(0, total - treeNanos.get()) / 1000);
+        metrics.record(BalancerMetrics.INSTANCE_TREES, treeNanos.get() / 1000);
+        metrics.record(BalancerMetrics.INSTANCE_KPATHS, kpathNanos.get() / 1000);
+        metrics.record(BalancerMetrics.INSTANCE_SELECTION, selectionNanos.get() / 1000);
+        metrics.record(BalancerMetrics.YEN_CALLS, yenCalls.get());
+    }
+
 	@Override
 	protected void calculateShortestPathTreeInClusters() {
+        long start = System.nanoTime();
+        try {
+            calculateDestinationTrees();
+        } finally {
+            treeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    protected void calculateDestinationTrees() {
 		pathcache.clear();
         destinationRootedTrees.clear();
+        backupNextHops.clear();
+        TopologyInstanceFuzzyBalancer prev = previous;
+        // Do not keep the chain of instances alive
+        previous = null;
+        // Trees of unchanged clusters can be carried over only from an
+        // instance with the same clusters, i.e. a cost epoch
+        boolean reusable = prev != null && prev.clusters == clusters
+                && prev.compactTrees == compactTrees
+                && prev.failedLinks.equals(failedLinks)
+                && prev.linkCostSnapshot != null;
+        if (compactTrees || denseRouteTableEnabled) {
+            if (reusable && prev.switchIndex != null && prev.linkTable != null) {
+                // Carried over compact trees refer to these ids
+                switchIndex = prev.switchIndex;
+                linkTable = prev.linkTable;
+            } else {
+                switchIndex = new SwitchIndex(switches);
+                linkTable = new LinkTable();
+            }
+        }
         
-        Map<Link, Integer> linkCost = mpbalance.getLinkCost();
+        linkCostSnapshot = new HashMap<Link, Integer>(mpbalance.getLinkCost());
+        treeVersions = new ConcurrentHashMap<Long, Long>();
+        if (prev != null) {
+            previousTrees = new ConcurrentHashMap<Long, BroadcastTree>(prev.destinationRootedTrees);
+            previousVersions = prev.treeVersions;
+        }
+
+        if (lazyTrees) {
+            List<Long> hot = Collections.emptyList();
+            if (prev != null && prewarmCount > 0
+                    && prev.destinationRootedTrees instanceof LazyTreeMap)
+                hot = ((LazyTreeMap) prev.destinationRootedTrees).getHotDestinations(prewarmCount);
+            destinationRootedTrees = new LazyTreeMap();
+            if (reusable) {
+                for (Cluster c : clusters) {
+                    if (!clusterChanged(c, prev))
+                        carryOverCluster(c, prev, true);
+                }
+            }
+            for (Long root : hot)
+                destinationRootedTrees.get(root);
+            return;
+        }
         
-        for(Cluster c: clusters) {
-            for (Long node : c.links.keySet()) {
-                BroadcastTree tree = getBestPath(c, node, linkCost, true);//dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+        if (prev != null)
+            deferredRoots = prev.fallbackRoots;
+        List<ClusterWork> changed = new ArrayList<ClusterWork>();
+        for (Cluster c : clusters) {
+            List<Long> roots;
+            if (reusable && !clusterChanged(c, prev)) {
+                // Only the trees that fell back to dijkstra are computed again
+                carryOverCluster(c, prev, true);
+                roots = new ArrayList<Long>();
+                for (Long root : c.links.keySet()) {
+                    if (!destinationRootedTrees.containsKey(root))
+                        roots.add(root);
+                }
+                if (roots.isEmpty())
+                    continue;
+            } else {
+                roots = new ArrayList<Long>(c.links.keySet());
             }
+            // Clusters left unfinished by the previous instance go first
+            if (hasDeferredRoot(c))
+                changed.add(0, new ClusterWork(c, roots));
+            else
+                changed.add(new ClusterWork(c, roots));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Recomputing {} of {} clusters", changed.size(), clusters.size());
+        }
+        if (computeBudget > 0)
+            deadline = System.nanoTime() + computeBudget * 1000000L;
+        computeClusters(changed);
+        deadline = 0;
+        deferredRoots = Collections.emptySet();
+        if (!fallbackRoots.isEmpty()) {
+            log.info("Compute budget exceeded, {} of {} destination trees " +
+                    "computed by dijkstra", fallbackRoots.size(), destinationRootedTrees.size());
         }
+        previousTrees = null;
+        previousVersions = null;
+        if (denseRouteTableEnabled && switches.size() <= DenseRouteTable.MAX_SWITCHES)
+            denseRouteTable = new DenseRouteTable(switchIndex, linkTable, destinationRootedTrees);
 	}
+
+    /**
+     * Whether the cost of a link of the cluster differs from the one the
+     * previous instance computed its trees with.
+     */
+    protected boolean clusterChanged(Cluster c, TopologyInstanceFuzzyBalancer prev) {
+        Map<Link, Integer> oldCost = prev.linkCostSnapshot;
+        for (Set<Link> links : c.getLinks().values()) {
+            for (Link link : links) {
+                Integer before = oldCost.get(link);
+                Integer after = linkCostSnapshot.get(link);
+                if ((before == null) ? after != null : !before.equals(after))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the trees, backups, versions and path candidates of the cluster
+     * from the previous instance, except the trees that fell back to
+     * dijkstra. Unless partial, nothing is taken and false is returned if a
+     * tree of the cluster was never computed.
+     */
+    protected boolean carryOverCluster(Cluster c, TopologyInstanceFuzzyBalancer prev,
+            boolean partial) {
+        // The previous trees hold only what the previous instance computed
+        Map<Long, BroadcastTree> oldTrees = previousTrees;
+        if (!partial) {
+            for (Long root : c.links.keySet()) {
+                if (oldTrees.get(root) == null || prev.treeVersions.get(root) == null
+                        || prev.fallbackRoots.contains(root))
+                    return false;
+            }
+        }
+        for (Long root : c.links.keySet()) {
+            Long version = prev.treeVersions.get(root);
+            // Fallback trees are left to be computed again
+            if (version == null || prev.fallbackRoots.contains(root)) continue;
+            BroadcastTree tree = oldTrees.remove(root);
+            if (tree == null) continue;
+            destinationRootedTrees.put(root, tree);
+            treeVersions.put(root, version);
+            Map<Long, Link> backups = prev.backupNextHops.get(root);
+            if (backups != null)
+                backupNextHops.put(root, backups);
+            for (Long node : c.getNodes()) {
+                Pair<Long, Long> key = new Pair<Long, Long>(node, root);
+                List<Pair<Path, Boolean>> candidates = prev.cacheMap.get(key);
+                if (candidates != null)
+                    cacheMap.put(key, candidates);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Destination trees of a cluster left to compute.
+     */
+    protected static class ClusterWork {
+        protected final Cluster cluster;
+        protected final List<Long> roots;
+
+        protected ClusterWork(Cluster cluster, List<Long> roots) {
+            this.cluster = cluster;
+            this.roots = roots;
+        }
+    }
+
+    /**
+     * Computes the destination trees of the clusters, in parallel on the
+     * cluster executor when there is one and more than one cluster.
+     */
+    protected void computeClusters(List<ClusterWork> changed) {
+        ExecutorService executor = clusterExecutor;
+        if (executor == null || changed.size() < 2) {
+            for (ClusterWork w : changed)
+                destinationRootedTrees.putAll(computeCluster(w.cluster, w.roots));
+            return;
+        }
+        List<Future<Map<Long, BroadcastTree>>> futures =
+                new ArrayList<Future<Map<Long, BroadcastTree>>>(changed.size());
+        for (final ClusterWork w : changed) {
+            futures.add(executor.submit(new Callable<Map<Long, BroadcastTree>>() {
+                @Override
+                public Map<Long, BroadcastTree> call() {
+                    return computeCluster(w.cluster, w.roots);
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            ClusterWork w = changed.get(i);
+            try {
+                destinationRootedTrees.putAll(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                destinationRootedTrees.putAll(computeCluster(w.cluster, w.roots));
+            } catch (ExecutionException e) {
+                log.error("Error computing the trees of cluster " + w.cluster.getId()
+                        + ", retrying", e.getCause());
+                destinationRootedTrees.putAll(computeCluster(w.cluster, w.roots));
+            }
+        }
+    }
+
+    protected Map<Long, BroadcastTree> computeCluster(Cluster c, Collection<Long> rootsToCompute) {
+        Map<Long, BroadcastTree> trees = new HashMap<Long, BroadcastTree>();
+        List<Long> roots = new ArrayList<Long>(rootsToCompute.size());
+        for (Long node : rootsToCompute) {
+            if (deferredRoots.contains(node))
+                roots.add(0, node);
+            else
+                roots.add(node);
+        }
+        for (Long node : roots) {
+            BroadcastTree tree = computeDestinationTree(c, node);
+            trees.put(node, tree);
+            assignTreeVersion(node, tree);
+        }
+        return trees;
+    }
+
+    protected boolean hasDeferredRoot(Cluster c) {
+        for (Long node : c.links.keySet()) {
+            if (deferredRoots.contains(node))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a fuzzy tree started now would not be done before the
+     * deadline, judging by the average time of the trees computed so far.
+     */
+    protected boolean overBudget() {
+        long d = deadline;
+        if (d == 0)
+            return false;
+        int count = fuzzyTreeCount.get();
+        long expected = (count == 0) ? 0 : fuzzyTreeNanos.get() / count;
+        return System.nanoTime() + expected > d;
+    }
+
+    protected BroadcastTree computeDestinationTree(Cluster c, Long root) {
+        BroadcastTree tree;
+        if (overBudget()) {
+            tree = dijkstra(c, root, linkCostSnapshot, true);
+            fallbackRoots.add(root);
+        } else {
+            long start = System.nanoTime();
+            tree = getBestPath(c, root, linkCostSnapshot, true);
+            fuzzyTreeNanos.addAndGet(System.nanoTime() - start);
+            fuzzyTreeCount.incrementAndGet();
+        }
+        if (fastFailover)
+            backupNextHops.put(root, calculateBackupNextHops(c, root, tree, linkCostSnapshot));
+        if (!failedLinks.isEmpty()) {
+            BroadcastTree patchedTree = patchTree(root, tree, failedLinks);
+            if (patchedTree != null)
+                tree = patchedTree;
+        }
+        return tree;
+    }
+
+    /**
+     * A tree identical to the previous instance's keeps its version so that
+     * routes cached from it stay valid; otherwise it gets a new one.
+     */
+    protected void assignTreeVersion(Long root, BroadcastTree tree) {
+        Long version = null;
+        Map<Long, BroadcastTree> oldTrees = previousTrees;
+        Map<Long, Long> oldVersions = previousVersions;
+        if (oldTrees != null && oldVersions != null) {
+            BroadcastTree old = oldTrees.remove(root);
+            if (old != null && sameTree(old, tree))
+                version = oldVersions.get(root);
+        }
+        if (version == null)
+            version = treeVersionSequence.incrementAndGet();
+        treeVersions.put(root, version);
+    }
+
+    protected boolean sameTree(BroadcastTree a, BroadcastTree b) {
+        if (a instanceof CompactBroadcastTree)
+            return ((CompactBroadcastTree) a).sameLinks(b);
+        if (b instanceof CompactBroadcastTree)
+            return ((CompactBroadcastTree) b).sameLinks(a);
+        HashMap<Long, Link> linksA = a.getLinks();
+        HashMap<Long, Link> linksB = b.getLinks();
+        return (linksA == null) ? linksB == null : linksA.equals(linksB);
+    }
+
+    public long getTreeVersion(long dst) {
+        if (lazyTrees)
+            destinationRootedTrees.get(dst);
+        return getComputedTreeVersion(dst);
+    }
+
+    /**
+     * Version of the tree if it is already computed, -1 otherwise.
+     */
+    public long getComputedTreeVersion(long dst) {
+        Long version = treeVersions.get(dst);
+        return (version == null) ? -1 : version;
+    }
+
+    public void setLazyTrees(boolean lazyTrees, int prewarmCount) {
+        this.lazyTrees = lazyTrees;
+        this.prewarmCount = prewarmCount;
+    }
+
+    /**
+     * Routes depend only on the destination tree unless they are re-selected
+     * per request.
+     */
+    public boolean isRouteCacheable() {
+        return !flowHashSpreading && !mpbalance.isLoadAnticipationEnabled();
+    }
+
+    /**
+     * Blocked, broadcast domain and tunnel ports as per switch bitsets.
+     */
+    public PortBitsets getPortBitsets() {
+        PortBitsets bits = portBitsets;
+        if (bits == null) {
+            bits = new PortBitsets(switches, blockedPorts,
+                    broadcastDomainPorts, tunnelPorts);
+            portBitsets = bits;
+        }
+        return bits;
+    }
+
+    /**
+     * Ports of the switch with links that are not broadcast domain ports;
+     * floods out of the openflow domain skip them.
+     */
+    public Set<Short> getNonBroadcastPorts(long sw) {
+        if (structure != null)
+            return structure.getNonBroadcastPorts(sw);
+        Set<Short> result = new HashSet<Short>();
+        Set<Short> ports = getPortsWithLinks(sw);
+        if (ports != null) {
+            for (Short port : ports) {
+                if (!isBroadcastDomainPort(new NodePortTuple(sw, port)))
+                    result.add(port);
+            }
+        }
+        return result;
+    }
+
+    public void setComputeBudget(long computeBudget) {
+        this.computeBudget = computeBudget;
+    }
+
+    /**
+     * Whether some destination trees were computed by dijkstra instead of
+     * the fuzzy selection; the next instance computes them first.
+     */
+    public boolean isPartiallyOptimised() {
+        return !fallbackRoots.isEmpty();
+    }
+
+    public void setClusterExecutor(ExecutorService clusterExecutor) {
+        this.clusterExecutor = clusterExecutor;
+    }
+
+    public void setPreviousInstance(TopologyInstanceFuzzyBalancer previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * For every switch of the tree, the cheapest other link to a neighbour
+     * whose own path to the root neither comes back through the switch nor
+     * uses the primary next hop.
+     */
+    protected Map<Long, Link> calculateBackupNextHops(Cluster c, Long root,
+            BroadcastTree tree, Map<Link, Integer> linkCost) {
+        Map<Long, Link> backups = new HashMap<Long, Link>();
+        for (Long node : c.getNodes()) {
+            if (node.equals(root)) continue;
+            Link primary = tree.getTreeLinkAt(node);
+            Set<Link> links = c.getLinks().get(node);
+            if (primary == null || links == null) continue;
+            Link backup = null;
+            long backupCost = Long.MAX_VALUE;
+            for (Link link : links) {
+                if (link.equals(primary)) continue;
+                if (!reachesRoot(tree, link.getDst(), root, node, Collections.singleton(primary)))
+                    continue;
+                Integer weight = (linkCost == null) ? null : linkCost.get(link);
+                long cost = ((weight == null) ? 1 : weight) + (long) tree.getCost(link.getDst());
+                if (cost < backupCost) {
+                    backup = link;
+                    backupCost = cost;
+                }
+            }
+            if (backup != null)
+                backups.put(node, backup);
+        }
+        return backups;
+    }
+
+    protected boolean reachesRoot(BroadcastTree tree, long from, long root,
+            long avoid, Set<Link> avoidLinks) {
+        long current = from;
+        for (int hops = 0; hops <= switches.size(); hops++) {
+            if (current == root) return true;
+            if (current == avoid) return false;
+            Link link = tree.getTreeLinkAt(current);
+            if (link == null || avoidLinks.contains(link)) return false;
+            current = link.getDst();
+        }
+        return false;
+    }
+
+    /**
+     * Provisional instance for the given failed links: the next hops using
+     * them are replaced by the precomputed backups and switches left
+     * without a loop-free path become unreachable. Everything else is
+     * shared with this instance. Returns null if no tree uses the links.
+     */
+    public TopologyInstanceFuzzyBalancer patchLinkFailure(Set<Link> failed) {
+        TopologyInstanceFuzzyBalancer patched = null;
+        for (Map.Entry<Long, BroadcastTree> entry : destinationRootedTrees.entrySet()) {
+            Long root = entry.getKey();
+            BroadcastTree patchedTree = patchTree(root, entry.getValue(), failed);
+            if (patchedTree == null) continue;
+
+            if (patched == null) {
+                patched = new TopologyInstanceFuzzyBalancer(this);
+                Set<Link> allFailed = new HashSet<Link>(failedLinks);
+                allFailed.addAll(failed);
+                patched.failedLinks = allFailed;
+            }
+            patched.treeVersions.put(root, treeVersionSequence.incrementAndGet());
+            patched.destinationRootedTrees.put(root, patchedTree);
+        }
+        if (patched == null && lazyTrees) {
+            // Trees not computed yet must still avoid the failed links
+            patched = new TopologyInstanceFuzzyBalancer(this);
+            Set<Link> allFailed = new HashSet<Link>(failedLinks);
+            allFailed.addAll(failed);
+            patched.failedLinks = allFailed;
+        }
+        return patched;
+    }
+
+    /**
+     * Tree with the next hops using the failed links replaced by their
+     * backups, or null if the tree does not use them.
+     */
+    protected BroadcastTree patchTree(Long root, BroadcastTree tree, Set<Link> failed) {
+        // A link is in the tree only as the next hop of its source
+        boolean affected = false;
+        for (Link link : failed) {
+            if (link.equals(tree.getTreeLinkAt(link.getSrc()))) {
+                affected = true;
+                break;
+            }
+        }
+        if (!affected) return null;
+        HashMap<Long, Link> links = tree.getLinks();
+        if (links == null) return null;
+
+        Map<Long, Link> backups = backupNextHops.get(root);
+        HashMap<Long, Link> nexthoplinks = new HashMap<Long, Link>(links);
+        HashMap<Long, Integer> cost = new HashMap<Long, Integer>();
+        for (Long node : links.keySet()) {
+            cost.put(node, tree.getCost(node));
+            Link link = links.get(node);
+            if (link == null || !failed.contains(link)) continue;
+            Link backup = (backups == null) ? null : backups.get(node);
+            if (backup != null && failed.contains(backup))
+                backup = null;
+            nexthoplinks.put(node, backup);
+        }
+        BroadcastTree patchedTree = new BroadcastTree(
+                new HashMap<Long, Link>(nexthoplinks), cost);
+        for (Long node : links.keySet()) {
+            if (node.equals(root)) continue;
+            if (!reachesRoot(patchedTree, node, root, -1, failed)) {
+                nexthoplinks.put(node, null);
+                cost.put(node, MAX_PATH_WEIGHT);
+            }
+        }
+        return new BroadcastTree(nexthoplinks, cost);
+    }
+
+    public boolean isProvisional() {
+        return !failedLinks.isEmpty();
+    }
     private Graph fromClusterToGraph(Cluster c, Long root, Map<Link, Integer> linkCost){
     	Graph graph = new Graph();
     	graph.set_vertex_num(c.getNodes().size());
@@ -168,8 +969,13 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
     		cost.put(root, 0);
     		if(node.equals(root)) continue;
     		Path path; 
+    			long kpathStart = System.nanoTime();
     			List<Path> l = calculateKShortestPath(c, root, node, linkCost);
-    			path = selectBestPath(l);
+    			long selectionStart = System.nanoTime();
+    			path = selectDampedPath(node, root, l);
+    			kpathNanos.addAndGet(selectionStart - kpathStart);
+    			selectionNanos.addAndGet(System.nanoTime() - selectionStart);
+    			cacheCandidates(node, root, l, path);
     		long dstSwitch = path.get_vertices().get(path.get_vertices().size()-1).get_id();
     		long srcSwitch = path.get_vertices().get(path.get_vertices().size()-2).get_id();
     		Link lastLink = null;
@@ -181,19 +987,36 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
     		cost.put(node, (int)path.get_weight());
     		nexthoplinks.put(node, lastLink);
     	}
-        BroadcastTree ret = new BroadcastTree(nexthoplinks, cost);
-        log.info(ret.toString());
+        BroadcastTree ret;
+        if (compactTrees)
+            ret = new CompactBroadcastTree(switchIndex, linkTable, nexthoplinks, cost);
+        else
+            ret = new BroadcastTree(nexthoplinks, cost);
+        if (log.isTraceEnabled()) {
+            log.trace(ret.toString());
+        }
         return ret;
     }
    
     protected Path selectBestPath(List<Path> pathList){
-    	Path bestPath = pathList.get(0);
-    	int minH = bestPath.get_vertices().size();
+    	double[] weights = new double[pathList.size()];
+    	for (int i = 0; i < weights.length; i++)
+    		weights[i] = pathList.get(i).get_weight();
+    	return pathList.get(selectBestIndex(pathList, weights));
+    }
+
+    /**
+     * Fuzzy score of every candidate from its hop count and the given
+     * weights. Lower is better.
+     */
+    protected double[] scorePaths(List<Path> pathList, double[] weights){
+    	int minH = pathList.get(0).get_vertices().size();
     	int maxH = minH;
     	double maxWeight = 0;
-    	for (Path tmpPath : pathList ){
-			if (tmpPath.get_weight() > maxWeight)
-				maxWeight = tmpPath.get_weight();
+    	for (int i = 0; i < weights.length; i++){
+    		Path tmpPath = pathList.get(i);
+			if (weights[i] > maxWeight)
+				maxWeight = weights[i];
 			if (tmpPath.get_vertices().size() > maxH)
 				maxH =  tmpPath.get_vertices().size();
 			if (tmpPath.get_vertices().size() < minH)
@@ -203,25 +1026,332 @@ public class TopologyInstanceFuzzyBalancer extends TopologyInstance {
 		Value[] yVal = { new Value(0.75), new Value(1) };
 		MembershipFunctionPieceWiseLinear bandwidthFunction = new MembershipFunctionPieceWiseLinear(
 				xVal, yVal);
-		RuleAccumulationMethodOWA owa = new RuleAccumulationMethodOWA();		
+		RuleAccumulationMethodOWA owa = new RuleAccumulationMethodOWA();
+		double[] scores = new double[weights.length];
+    	for (int i = 0; i < weights.length; i++){
+    	 	double pathLengthCost = bandwidthFunction.membership(pathList.get(i).get_vertices().size());
+    	 	double pathWeightCost = weights[i] / maxWeight;
+    	 	scores[i] = owa.aggregate(pathLengthCost, pathWeightCost);
+		}
+		return scores;
+    }
+
+    /**
+     * Same as selectBestPath, but keeps the incumbent path of the pair
+     * unless the winner beats it by the damping margin of the pair.
+     */
+    protected Path selectDampedPath(Long node, Long root, List<Path> pathList){
+    	if (flapDamping == null)
+    		return selectBestPath(pathList);
+    	double[] weights = new double[pathList.size()];
+    	for (int i = 0; i < weights.length; i++)
+    		weights[i] = pathList.get(i).get_weight();
+    	double[] scores = scorePaths(pathList, weights);
+    	int selected = flapDamping.select(node, root, pathList, scores, selectBestIndex(scores));
+    	return pathList.get(selected);
+    }
+
+    protected int selectBestIndex(List<Path> pathList, double[] weights){
+    	return selectBestIndex(scorePaths(pathList, weights));
+    }
+
+    protected int selectBestIndex(double[] scores){
+    	int best = 0;
 		double bestCost = 1;
-    	for (Path tPath : pathList ){
-    	 	double pathLengthCost = bandwidthFunction.membership(tPath.get_vertices().size());
-    	 	double pathWeightCost = tPath.get_weight() / maxWeight;
-    	 	double cost = owa.aggregate(pathLengthCost, pathWeightCost);
-    	 	if (cost < bestCost){
-    	 		bestPath = tPath;
-    	 		bestCost = cost;
-    	 	}    	 	
+    	for (int i = 0; i < scores.length; i++){
+    	 	if (scores[i] < bestCost){
+    	 		best = i;
+    	 		bestCost = scores[i];
+    	 	}
 		}
-		return bestPath;
-		
+		return best;
+    }
+
+    /**
+     * Keeps the K candidates from node to root, flagging the selected one,
+     * so routes can be re-selected between cost epochs.
+     */
+    protected void cacheCandidates(Long node, Long root, List<Path> pathList, Path selected){
+    	List<Pair<Path, Boolean>> candidates = new ArrayList<Pair<Path, Boolean>>(pathList.size());
+    	for (Path tPath : pathList){
+    		candidates.add(new Pair<Path, Boolean>(tPath, tPath == selected));
+    	}
+    	cacheMap.put(new Pair<Long, Long>(node, root), candidates);
+    }
+
+    protected List<Pair<Path, Boolean>> getCandidates(long srcId, long dstId){
+    	return cacheMap.get(new Pair<Long, Long>(srcId, dstId));
+    }
+
+    /**
+     * Candidates from src to dst with their fuzzy scores as of the last
+     * cost epoch, empty if the pair has none. With lazy trees the tree of
+     * dst is computed first.
+     */
+    public List<PathChoice> getPathChoices(long srcId, long dstId) {
+        if (destinationRootedTrees.get(dstId) == null)
+            return Collections.emptyList();
+        List<Pair<Path, Boolean>> candidates = getCandidates(srcId, dstId);
+        if (candidates == null || candidates.isEmpty())
+            return Collections.emptyList();
+
+        List<Path> paths = new ArrayList<Path>(candidates.size());
+        double[] weights = new double[candidates.size()];
+        for (int i = 0; i < weights.length; i++) {
+            paths.add(candidates.get(i).first());
+            weights[i] = paths.get(i).get_weight();
+        }
+        double[] scores = scorePaths(paths, weights);
+        List<PathChoice> choices = new ArrayList<PathChoice>(paths.size());
+        for (int i = 0; i < weights.length; i++) {
+            List<BaseVertex> vertices = paths.get(i).get_vertices();
+            List<Long> switches = new ArrayList<Long>(vertices.size());
+            for (int v = vertices.size() - 1; v >= 0; v--)
+                switches.add((long) vertices.get(v).get_id());
+            choices.add(new PathChoice(switches, weights[i], scores[i],
+                    candidates.get(i).second()));
+        }
+        return choices;
+    }
+
+    @Override
+    protected Route getRoute(long srcId, long dstId) {
+        if (mpbalance.isLoadAnticipationEnabled()) {
+            Route result = selectRoute(srcId, dstId, false, 0);
+            if (result != null)
+                return result;
+        }
+        if (denseRouteTable != null && denseRouteTable.covers(dstId))
+            return denseRouteTable.buildRoute(new RouteId(srcId, dstId), srcId, dstId);
+        return super.getRoute(srcId, dstId);
+    }
+
+    @Override
+    protected Route getRoute(long srcId, short srcPort, long dstId, short dstPort) {
+        if (flowHashSpreading)
+            return getRoute(srcId, srcPort, dstId, dstPort,
+                    flowHash(srcId, srcPort, dstId, dstPort));
+        return super.getRoute(srcId, srcPort, dstId, dstPort);
+    }
+
+    /**
+     * Route for a single flow. Candidates scoring within the spread
+     * tolerance of the best one are equivalent and the flow is pinned to
+     * one of them by rendezvous hashing, so that only the flows of a
+     * removed candidate move when the set changes.
+     */
+    protected Route getRoute(long srcId, short srcPort, long dstId, short dstPort, long flowHash) {
+        if (srcId == dstId || !flowHashSpreading)
+            return super.getRoute(srcId, srcPort, dstId, dstPort);
+        Route r = selectRoute(srcId, dstId, true, flowHash);
+        if (r == null)
+            return super.getRoute(srcId, srcPort, dstId, dstPort);
+
+        List<NodePortTuple> nptList = new ArrayList<NodePortTuple>(r.getPath().size() + 2);
+        nptList.add(new NodePortTuple(srcId, srcPort));
+        nptList.addAll(r.getPath());
+        nptList.add(new NodePortTuple(dstId, dstPort));
+        return new Route(new RouteId(srcId, dstId), nptList);
+    }
+
+    /**
+     * Re-selects among the cached candidates. With load anticipation the
+     * costs include the load charged by routes handed out since the last
+     * counters, and the chosen path is charged in turn.
+     */
+    protected Route selectRoute(long srcId, long dstId, boolean spread, long flowHash) {
+        List<Pair<Path, Boolean>> candidates = getCandidates(srcId, dstId);
+        Cluster c = switchClusterMap.get(srcId);
+        if (candidates == null || candidates.isEmpty() || c == null)
+            return null;
+
+        boolean anticipate = mpbalance.isLoadAnticipationEnabled();
+        List<Path> paths = new ArrayList<Path>(candidates.size());
+        List<List<Link>> pathLinks = new ArrayList<List<Link>>(candidates.size());
+        double[] weights = new double[candidates.size()];
+        for (int i = 0; i < weights.length; i++) {
+            Path tPath = candidates.get(i).first();
+            List<Link> links = getPathLinks(c, tPath);
+            if (links == null)
+                return null;
+            if (!Collections.disjoint(links, failedLinks))
+                return null;
+            if (anticipate) {
+                for (Link link : links)
+                    weights[i] += mpbalance.getAnticipatedCost(link);
+            } else {
+                weights[i] = tPath.get_weight();
+            }
+            paths.add(tPath);
+            pathLinks.add(links);
+        }
+
+        int selected;
+        if (spread) {
+            selected = selectByFlowHash(paths, scorePaths(paths, weights), flowHash);
+        } else {
+            selected = selectBestIndex(paths, weights);
+        }
+        List<Link> links = pathLinks.get(selected);
+        if (anticipate)
+            mpbalance.chargeLinks(links);
+        return buildRoute(new RouteId(srcId, dstId), links);
+    }
+
+    protected int selectByFlowHash(List<Path> paths, double[] scores, long flowHash) {
+        double bestScore = scores[0];
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] < bestScore)
+                bestScore = scores[i];
+        }
+        int selected = -1;
+        long maxWeight = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (!(scores[i] <= bestScore + spreadTolerance))
+                continue;
+            long weight = mix(flowHash ^ pathHash(paths.get(i)));
+            if (selected < 0 || weight > maxWeight) {
+                selected = i;
+                maxWeight = weight;
+            }
+        }
+        return (selected < 0) ? 0 : selected;
+    }
+
+    protected static long pathHash(Path path) {
+        long h = 0;
+        for (BaseVertex vertex : path.get_vertices())
+            h = mix(h * 31 + vertex.get_id());
+        return h;
+    }
+
+    public static long flowHash(long srcId, short srcPort, long dstId, short dstPort) {
+        long h = mix(srcId);
+        h = mix(h ^ srcPort);
+        h = mix(h ^ dstId);
+        return mix(h ^ dstPort);
+    }
+
+    protected static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    public void setCandidateMode(CandidateMode candidateMode) {
+        this.candidateMode = candidateMode;
+    }
+
+    public void setCompactTrees(boolean compactTrees) {
+        this.compactTrees = compactTrees;
+    }
+
+    public void setDenseRouteTable(boolean denseRouteTableEnabled) {
+        this.denseRouteTableEnabled = denseRouteTableEnabled;
+    }
+
+    public void setFlapDamping(RouteFlapDamping flapDamping) {
+        this.flapDamping = flapDamping;
+    }
+
+    public void setFastFailover(boolean fastFailover) {
+        this.fastFailover = fastFailover;
+    }
+
+    public void setFlowHashSpreading(boolean flowHashSpreading, double spreadTolerance) {
+        this.flowHashSpreading = flowHashSpreading;
+        this.spreadTolerance = spreadTolerance;
+    }
+
+    /**
+     * Same as TopologyInstance.routeExists, but reads the next hop through
+     * getTreeLinkAt instead of building the map of the tree on every call.
+     */
+    @Override
+    public boolean routeExists(long srcId, long dstId) {
+        BroadcastTree bt = destinationRootedTrees.get(dstId);
+        if (bt == null) return false;
+        return bt.getTreeLinkAt(srcId) != null;
+    }
+
+    /**
+     * Same as TopologyInstance.buildroute, but follows the tree through
+     * getTreeLinkAt so compact trees are not materialised as maps.
+     */
+    @Override
+    protected Route buildroute(RouteId id, long srcId, long dstId) {
+        if (!compactTrees)
+            return super.buildroute(id, srcId, dstId);
+        if (destinationRootedTrees == null) return null;
+        BroadcastTree tree = destinationRootedTrees.get(dstId);
+        if (tree == null) return null;
+
+        List<NodePortTuple> switchPorts = new ArrayList<NodePortTuple>();
+        if (!switches.contains(srcId) || !switches.contains(dstId)) {
+            log.debug("buildroute: Standalone switch: {}", srcId);
+        } else if (tree.getTreeLinkAt(srcId) != null) {
+            for (int hops = 0; srcId != dstId; hops++) {
+                Link l = tree.getTreeLinkAt(srcId);
+                if (l == null || hops > switches.size()) return null;
+                switchPorts.add(new NodePortTuple(l.getSrc(), l.getSrcPort()));
+                switchPorts.add(new NodePortTuple(l.getDst(), l.getDstPort()));
+                srcId = l.getDst();
+            }
+        }
+        Route result = null;
+        if (!switchPorts.isEmpty())
+            result = new Route(id, switchPorts);
+        if (log.isTraceEnabled()) {
+            log.trace("buildroute: {}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Links of a candidate computed from root to node, in the direction
+     * of the traffic from node to root.
+     */
+    protected List<Link> getPathLinks(Cluster c, Path path) {
+        List<BaseVertex> vertices = path.get_vertices();
+        List<Link> links = new ArrayList<Link>(vertices.size());
+        for (int i = vertices.size() - 1; i > 0; i--) {
+            Link link = findLink(c, vertices.get(i).get_id(), vertices.get(i - 1).get_id());
+            if (link == null)
+                return null;
+            links.add(link);
+        }
+        return links;
+    }
+
+    protected Link findLink(Cluster c, long from, long to) {
+        Set<Link> links = c.getLinks().get(from);
+        if (links == null)
+            return null;
+        for (Link link : links) {
+            if (link.getDst() == to)
+                return link;
+        }
+        return null;
+    }
+
+    protected Route buildRoute(RouteId id, List<Link> links) {
+        if (links.isEmpty())
+            return null;
+        List<NodePortTuple> switchPorts = new ArrayList<NodePortTuple>(2 * links.size());
+        for (Link link : links) {
+            switchPorts.add(new NodePortTuple(link.getSrc(), link.getSrcPort()));
+            switchPorts.add(new NodePortTuple(link.getDst(), link.getDstPort()));
+        }
+        return new Route(id, switchPorts);
     }
     
     protected List<Path> calculateKShortestPath(Cluster c, Long root, Long node, Map<Link, Integer> linkCost){
+    	if (candidateMode != CandidateMode.YEN)
+    		return DisjointPathGenerator.calculate(c, root, node, linkCost, K_PATHS, candidateMode);
+    	yenCalls.incrementAndGet();
     	Graph graph = fromClusterToGraph(c, root, linkCost);
     	YenTopKShortestPathsAlg yenAlg = new YenTopKShortestPathsAlg(graph);
-    	List<Path> pathList = yenAlg.get_shortest_paths(graph.get_vertex(root), graph.get_vertex(node), 3);
+    	List<Path> pathList = yenAlg.get_shortest_paths(graph.get_vertex(root), graph.get_vertex(node), K_PATHS);
     	
     	return pathList;
     }
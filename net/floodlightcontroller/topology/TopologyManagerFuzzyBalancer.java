@@ -9,7 +9,9 @@ package net.floodlightcontroller.topology;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,9 +19,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -27,6 +34,7 @@ import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.IHAListener;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
@@ -44,29 +52,31 @@ import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
 import net.floodlightcontroller.storage.IStorageSourceService;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.DisjointPathGenerator.CandidateMode;
 import net.floodlightcontroller.topology.web.TopologyWebRoutable;
 
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
-import org.openflow.protocol.action.OFAction;
-import org.openflow.protocol.action.OFActionOutput;
 import org.restlet.resource.ServerResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.sut.fuzzybalancer.BalancerMetrics;
 import ru.sut.fuzzybalancer.IFuzzyBalancerListener;
 import ru.sut.fuzzybalancer.IFuzzyBalancerService;
 
 @LogMessageCategory("Network Topology")
 public class TopologyManagerFuzzyBalancer extends ServerResource implements
-		IFloodlightModule, ITopologyService, IRoutingService,
-		ILinkDiscoveryListener, IOFMessageListener, IHAListener,
-		IFuzzyBalancerListener {
+		IFloodlightModule, ITopologyService, IFlowRoutingService,
+		ILinkDiscoveryListener, IOFMessageListener, IOFSwitchListener,
+		IHAListener, IFuzzyBalancerListener {
 
 	protected static Logger log = LoggerFactory
 			.getLogger(TopologyManagerFuzzyBalancer.class);
@@ -100,6 +110,14 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	 */
 	protected Map<NodePortTuple, Set<Link>> tunnelLinks;
 
+	/**
+	 * Snapshot of the structures above shared by the instances, rebuilt from
+	 * the dirty switches and ports when links are updated
+	 */
+	protected volatile TopologyStructure structure;
+	protected Set<Long> dirtySwitches;
+	protected Set<NodePortTuple> dirtyPorts;
+
 	protected ILinkDiscoveryService linkDiscovery;
 	protected IThreadPoolService threadPool;
 	protected IFloodlightProviderService floodlightProvider;
@@ -113,13 +131,46 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	protected BlockingQueue<LDUpdate> ldUpdates;
 	protected List<LDUpdate> appliedUpdates;
 
-	// These must be accessed using getCurrentInstance(), not directly
-	protected TopologyInstanceFuzzyBalancer currentInstance;
-	protected TopologyInstanceFuzzyBalancer currentInstanceWithoutTunnels;
+	// Must be accessed using getCurrentInstance() or getCurrentEpoch(), not
+	// directly. Instances are only published by compareAndSet.
+	protected AtomicReference<TopologyEpoch> currentEpoch;
 
 	protected SingletonTask newInstanceTask;
+	// Cost rebuild finishing the trees of a partially optimised instance
+	protected SingletonTask completionTask;
+	public static final int COMPLETION_DELAY = 500; // milliseconds
 	private Date lastUpdateTime;
 
+	protected boolean flowHashSpreading = false;
+	protected double spreadTolerance = TopologyInstanceFuzzyBalancer.SPREAD_TOLERANCE;
+	// Outlives the instances, null if flap damping is disabled
+	protected RouteFlapDamping flapDamping;
+	protected boolean fastFailover = false;
+	// Shared by all instances, entries are validated against tree versions
+	protected RouteCache routeCache;
+	protected int routeCacheSize = 0;
+	protected boolean denseRouteTable = false;
+	protected boolean compactTrees = false;
+	protected boolean lazyTrees = false;
+	protected int prewarmDestinations = 0;
+	// Computes the trees of the clusters in parallel, null if disabled
+	protected ExecutorService clusterExecutor;
+	protected long computeBudget = 0;
+	// Link discovery updates are applied once no update came for the quiet
+	// period, at most the max delay after the first one; 0 applies them
+	// right away
+	protected long updateQuietPeriod = 0; // milliseconds
+	protected long updateMaxDelay = 0; // milliseconds
+	protected volatile long burstStart;
+	// BDDP flood ports of every switch for the current instance
+	protected FloodPortCache floodPortCache;
+	protected PacketOutBuilder packetOutBuilder;
+	// Floods BDDP packets off the I/O threads, null to flood inline
+	protected BddpFloodPool bddpFloodPool;
+	// Shared with the balancer, null until startUp
+	protected BalancerMetrics metrics;
+	protected CandidateMode candidateMode = CandidateMode.YEN;
+
 	/**
 	 * Flag that indicates if links (direct/tunnel/multihop links) were updated
 	 * as part of LDUpdate.
@@ -152,8 +203,16 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		boolean newInstanceFlag;
 		linksUpdated = false;
 		dtLinksUpdated = false;
+		// Taken before the updates are drained, the failovers it has are
+		// reflected in the batch
+		TopologyEpoch base = currentEpoch.get();
 		applyUpdates();
-		newInstanceFlag = createNewInstance();
+		// A provisional instance is only cleared by a structural one, even
+		// if the removal of its failed links was coalesced away
+		TopologyInstanceFuzzyBalancer ti = base.getInstance(true);
+		if (ti != null && !ti.failedLinks.isEmpty())
+			linksUpdated = true;
+		newInstanceFlag = createNewInstance(base);
 		lastUpdateTime = new Date();
 		informListeners();
 		return newInstanceFlag;
@@ -176,11 +235,115 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		}
 		ldUpdates.add(update);
 
-		if (scheduleFlag) {
+		if (fastFailover
+				&& update.getOperation() == UpdateOperation.LINK_REMOVED) {
+			applyFastFailover(new Link(update.getSrc(), update.getSrcPort(),
+					update.getDst(), update.getDstPort()));
+		}
+
+		if (updateQuietPeriod > 0) {
+			// Every update of a burst pushes the rebuild back, up to the cap
+			long now = System.currentTimeMillis();
+			if (scheduleFlag)
+				burstStart = now;
+			long delay = updateQuietPeriod;
+			if (updateMaxDelay > 0)
+				delay = Math.max(0, Math.min(delay, burstStart + updateMaxDelay - now));
+			newInstanceTask.reschedule(delay, TimeUnit.MILLISECONDS);
+		} else if (scheduleFlag) {
 			newInstanceTask.reschedule(1, TimeUnit.MICROSECONDS);
 		}
 	}
 
+	/**
+	 * Publishes a provisional instance whose trees are patched around the
+	 * removed link with the precomputed backup next hops. The queued update
+	 * triggers the full recompute as usual.
+	 */
+	protected void applyFastFailover(Link link) {
+		while (true) {
+			TopologyEpoch current = currentEpoch.get();
+			TopologyInstanceFuzzyBalancer ti = current.getInstance(true);
+			if (ti == null)
+				return;
+			TopologyInstanceFuzzyBalancer patched = ti
+					.patchLinkFailure(Collections.singleton(link));
+			if (patched == null)
+				return;
+			TopologyEpoch next = new TopologyEpoch(patched, patched,
+					current.getEpoch() + 1, current.getCostEpoch(),
+					current.getStructureEpoch(),
+					current.getFailoverEpoch() + 1, System.currentTimeMillis());
+			if (currentEpoch.compareAndSet(current, next)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Published provisional instance around {}", link);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a fully computed instance started when base was current.
+	 * A cost-only instance is discarded if the structure was replaced or a
+	 * failover was published meanwhile, since its trees may still use the
+	 * failed links. A structural instance is patched around the links
+	 * failed over meanwhile instead, those failed over before base are
+	 * already in its structure. Returns whether the instance was published.
+	 */
+	protected boolean publishInstance(TopologyInstanceFuzzyBalancer nt,
+			boolean structural, TopologyEpoch base) {
+		TopologyInstanceFuzzyBalancer published;
+		while (true) {
+			TopologyEpoch current = currentEpoch.get();
+			boolean failedOver = current.getFailoverEpoch() != base
+					.getFailoverEpoch();
+			if (!structural && (failedOver
+					|| current.getStructureEpoch() != base.getStructureEpoch()))
+				return false;
+			published = nt;
+			TopologyInstanceFuzzyBalancer ti = current.getInstance(true);
+			if (failedOver && ti != null) {
+				// Only the links failed over since base that the new
+				// structure still has
+				TopologyInstanceFuzzyBalancer baseInstance = base
+						.getInstance(true);
+				Set<Link> failed = new HashSet<Link>();
+				for (Link link : ti.failedLinks) {
+					if (baseInstance != null
+							&& baseInstance.failedLinks.contains(link))
+						continue;
+					Set<Link> links = nt.switchPortLinks.get(new NodePortTuple(
+							link.getSrc(), link.getSrcPort()));
+					if (links != null && links.contains(link))
+						failed.add(link);
+				}
+				TopologyInstanceFuzzyBalancer patched = failed.isEmpty() ? null
+						: nt.patchLinkFailure(failed);
+				if (patched != null)
+					published = patched;
+			}
+			// We set the instances with and without tunnels to be identical.
+			// If needed, we may compute them differently.
+			TopologyEpoch next = new TopologyEpoch(published, published,
+					current.getEpoch() + 1, current.getCostEpoch() + 1,
+					structural ? current.getStructureEpoch() + 1
+							: current.getStructureEpoch(),
+					current.getFailoverEpoch(), System.currentTimeMillis());
+			if (currentEpoch.compareAndSet(current, next))
+				break;
+		}
+		// A patched instance is provisional, the next structural one clears
+		// the failed links that are no longer removed
+		if (published != nt && newInstanceTask != null)
+			newInstanceTask.reschedule(Math.max(1, updateQuietPeriod),
+					TimeUnit.MILLISECONDS);
+		// The trees left to dijkstra are finished by a cost rebuild
+		if (nt.isPartiallyOptimised() && completionTask != null)
+			completionTask.reschedule(COMPLETION_DELAY, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
 	// ****************
 	// ITopologyService
 	// ****************
@@ -265,7 +428,7 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	@Override
 	public boolean isAllowed(long sw, short portId, boolean tunnelEnabled) {
 		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(tunnelEnabled);
-		return ti.isAllowed(sw, portId);
+		return ti.getPortBitsets().isAllowed(sw, portId);
 	}
 
 	// //////////////////////////////////////////////////////////////////////
@@ -381,7 +544,7 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	public boolean isBroadcastDomainPort(long sw, short port,
 			boolean tunnelEnabled) {
 		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(tunnelEnabled);
-		return ti.isBroadcastDomainPort(new NodePortTuple(sw, port));
+		return ti.getPortBitsets().isBroadcastDomainPort(sw, port);
 	}
 
 	/**
@@ -464,11 +627,12 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 
 		// As we might have two topologies, simply get the union of
 		// both of them and send it.
-		bp = getCurrentInstance(true).getBlockedPorts();
+		TopologyEpoch epoch = getCurrentEpoch();
+		bp = epoch.getInstance(true).getBlockedPorts();
 		if (bp != null)
 			blockedPorts.addAll(bp);
 
-		bp = getCurrentInstance(false).getBlockedPorts();
+		bp = epoch.getInstance(false).getBlockedPorts();
 		if (bp != null)
 			blockedPorts.addAll(bp);
 
@@ -494,8 +658,8 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 
 	@Override
 	public Route getRoute(long src, long dst, boolean tunnelEnabled) {
-		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(tunnelEnabled);
-		return ti.getRoute(src, dst);
+		return getRoute(src, OFPort.OFPP_NONE.getValue(), dst,
+				OFPort.OFPP_NONE.getValue(), tunnelEnabled);
 	}
 
 	@Override
@@ -507,9 +671,52 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	public Route getRoute(long src, short srcPort, long dst, short dstPort,
 			boolean tunnelEnabled) {
 		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(tunnelEnabled);
+		if (!ti.isRouteCacheable())
+			return computeRoute(ti, src, srcPort, dst, dstPort);
+
+		RouteCache.RouteKey key = new RouteCache.RouteKey(src, srcPort, dst,
+				dstPort, tunnelEnabled);
+		Route result = routeCache.get(key, ti);
+		if (result == null) {
+			result = computeRoute(ti, src, srcPort, dst, dstPort);
+			routeCache.put(key, result, ti);
+		}
+		return result;
+	}
+
+	protected Route computeRoute(TopologyInstanceFuzzyBalancer ti, long src,
+			short srcPort, long dst, short dstPort) {
+		if (srcPort == OFPort.OFPP_NONE.getValue()
+				&& dstPort == OFPort.OFPP_NONE.getValue())
+			return ti.getRoute(src, dst);
 		return ti.getRoute(src, srcPort, dst, dstPort);
 	}
 
+	public RouteCache getRouteCache() {
+		return routeCache;
+	}
+
+	@Override
+	public Route getRoute(long src, short srcPort, long dst, short dstPort,
+			OFMatch match, boolean tunnelEnabled) {
+		if (!flowHashSpreading || match == null)
+			return getRoute(src, srcPort, dst, dstPort, tunnelEnabled);
+		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(tunnelEnabled);
+		return ti.getRoute(src, srcPort, dst, dstPort, flowHash(match));
+	}
+
+	public static long flowHash(OFMatch match) {
+		long h = Arrays.hashCode(match.getDataLayerSource());
+		h = h * 31 + Arrays.hashCode(match.getDataLayerDestination());
+		h = h * 31 + match.getDataLayerType();
+		h = h * 31 + match.getNetworkSource();
+		h = h * 31 + match.getNetworkDestination();
+		h = h * 31 + match.getNetworkProtocol();
+		h = h * 31 + match.getTransportSource();
+		h = h * 31 + match.getTransportDestination();
+		return TopologyInstanceFuzzyBalancer.mix(h);
+	}
+
 	public IStorageSourceService getStorageSource() {
 		return storageSource;
 	}
@@ -548,7 +755,12 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx) {
 		switch (msg.getType()) {
 		case PACKET_IN:
-			return this.processPacketInMessage(sw, (OFPacketIn) msg, cntx);
+			long start = System.nanoTime();
+			Command result = this.processPacketInMessage(sw, (OFPacketIn) msg,
+					cntx);
+			if (metrics != null)
+				metrics.recordSince(BalancerMetrics.PACKET_IN, start);
+			return result;
 		default:
 			break;
 		}
@@ -556,6 +768,28 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		return Command.CONTINUE;
 	}
 
+	// *****************
+	// IOFSwitchListener
+	// *****************
+
+	@Override
+	public void addedSwitch(IOFSwitch sw) {
+		floodPortCache.switchPortChanged(sw);
+	}
+
+	@Override
+	public void removedSwitch(IOFSwitch sw) {
+		floodPortCache.removeSwitch(sw.getId());
+		packetOutBuilder.removeSwitch(sw.getId());
+	}
+
+	@Override
+	public void switchPortChanged(Long switchId) {
+		IOFSwitch sw = floodlightProvider.getSwitches().get(switchId);
+		if (sw != null)
+			floodPortCache.switchPortChanged(sw);
+	}
+
 	// ***************
 	// IHAListener
 	// ***************
@@ -596,6 +830,7 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		Collection<Class<? extends IFloodlightService>> l = new ArrayList<Class<? extends IFloodlightService>>();
 		l.add(ITopologyService.class);
 		l.add(IRoutingService.class);
+		l.add(IFlowRoutingService.class);
 		return l;
 	}
 
@@ -605,6 +840,7 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		// We are the class that implements the service
 		m.put(ITopologyService.class, this);
 		m.put(IRoutingService.class, this);
+		m.put(IFlowRoutingService.class, this);
 		return m;
 	}
 
@@ -636,10 +872,90 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		directLinks = new HashMap<NodePortTuple, Set<Link>>();
 		portBroadcastDomainLinks = new HashMap<NodePortTuple, Set<Link>>();
 		tunnelLinks = new HashMap<NodePortTuple, Set<Link>>();
+		dirtySwitches = new HashSet<Long>();
+		dirtyPorts = new HashSet<NodePortTuple>();
 		topologyAware = new ArrayList<ITopologyListener>();
 		ldUpdates = new LinkedBlockingQueue<LDUpdate>();
 
 		appliedUpdates = new ArrayList<LDUpdate>();
+		routeCache = new RouteCache();
+		floodPortCache = new FloodPortCache();
+		packetOutBuilder = new PacketOutBuilder(floodlightProvider);
+		currentEpoch = new AtomicReference<TopologyEpoch>(new TopologyEpoch(
+				null, null, 0, 0, 0, 0, System.currentTimeMillis()));
+
+		Map<String, String> configOptions = context.getConfigParams(this);
+		String option = configOptions.get("flowHashSpreading");
+		if (option != null)
+			flowHashSpreading = Boolean.parseBoolean(option);
+		option = configOptions.get("spreadTolerance");
+		if (option != null)
+			spreadTolerance = Double.parseDouble(option);
+		option = configOptions.get("routeCacheSize");
+		if (option != null)
+			routeCacheSize = Integer.parseInt(option);
+		option = configOptions.get("denseRouteTable");
+		if (option != null)
+			denseRouteTable = Boolean.parseBoolean(option);
+		option = configOptions.get("compactTrees");
+		if (option != null)
+			compactTrees = Boolean.parseBoolean(option);
+		option = configOptions.get("lazyTrees");
+		if (option != null)
+			lazyTrees = Boolean.parseBoolean(option);
+		option = configOptions.get("prewarmDestinations");
+		if (option != null)
+			prewarmDestinations = Integer.parseInt(option);
+		option = configOptions.get("candidatePaths");
+		if (option != null)
+			candidateMode = DisjointPathGenerator.parseMode(option);
+		option = configOptions.get("fastFailover");
+		if (option != null)
+			fastFailover = Boolean.parseBoolean(option);
+		option = configOptions.get("flapDamping");
+		if (option != null && Boolean.parseBoolean(option)) {
+			long halfLife = RouteFlapDamping.HALF_LIFE;
+			option = configOptions.get("flapHalfLife");
+			if (option != null)
+				halfLife = Long.parseLong(option);
+			flapDamping = new RouteFlapDamping(halfLife,
+					RouteFlapDamping.BASE_MARGIN,
+					RouteFlapDamping.MARGIN_PER_FLAP);
+		}
+		option = configOptions.get("updateQuietPeriod");
+		if (option != null)
+			updateQuietPeriod = Long.parseLong(option);
+		option = configOptions.get("updateMaxDelay");
+		if (option != null)
+			updateMaxDelay = Long.parseLong(option);
+		option = configOptions.get("bddpWorkers");
+		if (option != null && Integer.parseInt(option) > 0) {
+			int queueSize = BddpFloodPool.DEFAULT_QUEUE_SIZE;
+			String queueOption = configOptions.get("bddpQueueSize");
+			if (queueOption != null)
+				queueSize = Integer.parseInt(queueOption);
+			bddpFloodPool = new BddpFloodPool(Integer.parseInt(option),
+					queueSize);
+		}
+		option = configOptions.get("computeBudget");
+		if (option != null)
+			computeBudget = Long.parseLong(option);
+		option = configOptions.get("clusterThreads");
+		if (option != null && Integer.parseInt(option) > 1) {
+			clusterExecutor = Executors.newFixedThreadPool(
+					Integer.parseInt(option), new ThreadFactory() {
+						protected final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "TopologyCluster-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+
 		clearCurrentTopology();
 	}
 
@@ -647,11 +963,63 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	public void startUp(FloodlightModuleContext context) {
 		ScheduledExecutorService ses = threadPool.getScheduledExecutor();
 		newInstanceTask = new SingletonTask(ses, new UpdateTopologyWorker());
+		completionTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				costChanged();
+			}
+		});
 		linkDiscovery.addListener(this);
 		floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+		floodlightProvider.addOFSwitchListener(this);
 		floodlightProvider.addHAListener(this);
 		mpbalance.addListener(this);
 		addRestletRoutable();
+		metrics = mpbalance.getMetrics();
+		if (metrics != null)
+			registerGauges();
+	}
+
+	protected void registerGauges() {
+		metrics.registerGauge("routeCache.hits", new BalancerMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return routeCache.getHits();
+			}
+		});
+		metrics.registerGauge("routeCache.misses", new BalancerMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return routeCache.getMisses();
+			}
+		});
+		metrics.registerGauge("routeCache.invalidations",
+				new BalancerMetrics.Gauge() {
+					@Override
+					public long getValue() {
+						return routeCache.getInvalidations();
+					}
+				});
+		metrics.registerGauge("topology.epoch", new BalancerMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return currentEpoch.get().getEpoch();
+			}
+		});
+		if (bddpFloodPool != null) {
+			metrics.registerGauge("bddp.queueDepth", new BalancerMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return bddpFloodPool.getQueueDepth();
+				}
+			});
+			metrics.registerGauge("bddp.dropped", new BalancerMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return bddpFloodPool.getDropped();
+				}
+			});
+		}
 	}
 
 	public void setStorageSource(IStorageSourceService storageSource) {
@@ -707,38 +1075,24 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 			+ "topology discovery packet", recommendation = LogMessageDoc.CHECK_SWITCH)
 	public void doMultiActionPacketOut(byte[] packetData, IOFSwitch sw,
 			Set<Short> ports, FloodlightContext cntx) {
+		doMultiActionPacketOut(packetData, sw, OFPort.OFPP_NONE.getValue(),
+				ports, cntx);
+	}
+
+	/**
+	 * Same as above, for a flood out of the given ports which exclude the
+	 * given in-port; the actions are cached per switch and excluded port.
+	 */
+	protected void doMultiActionPacketOut(byte[] packetData, IOFSwitch sw,
+			short excludedPort, Set<Short> ports, FloodlightContext cntx) {
 
 		if (ports == null)
 			return;
 		if (packetData == null || packetData.length <= 0)
 			return;
 
-		OFPacketOut po = (OFPacketOut) floodlightProvider.getOFMessageFactory()
-				.getMessage(OFType.PACKET_OUT);
-
-		List<OFAction> actions = new ArrayList<OFAction>();
-		for (short p : ports) {
-			actions.add(new OFActionOutput(p, (short) 0));
-		}
-
-		// set actions
-		po.setActions(actions);
-		// set action length
-		po.setActionsLength((short) (OFActionOutput.MINIMUM_LENGTH * ports
-				.size()));
-		// set buffer-id to BUFFER_ID_NONE
-		po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-		// set in-port to OFPP_NONE
-		po.setInPort(OFPort.OFPP_NONE.getValue());
-
-		// set packet data
-		po.setPacketData(packetData);
-
-		// compute and set packet length.
-		short poLength = (short) (OFPacketOut.MINIMUM_LENGTH
-				+ po.getActionsLength() + packetData.length);
-
-		po.setLength(poLength);
+		OFPacketOut po = packetOutBuilder.build(sw.getId(), excludedPort,
+				ports, packetData);
 
 		try {
 			// counterStore.updatePktOutFMCounterStore(sw, po);
@@ -766,6 +1120,36 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	 */
 	protected void doFloodBDDP(long pinSwitch, OFPacketIn pi,
 			FloodlightContext cntx) {
+		doFloodBDDP(pinSwitch, pi, cntx, false);
+	}
+
+	/**
+	 * Hands the flood to the BDDP worker pool. The context of the packet-in
+	 * is not passed on, it is reused once the pipeline is done with it.
+	 */
+	protected void submitFloodBDDP(final long pinSwitch, final OFPacketIn pi) {
+		boolean queued = bddpFloodPool.submit(pinSwitch, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					doFloodBDDP(pinSwitch, pi, new FloodlightContext(), true);
+				} catch (Exception e) {
+					log.error("Error flooding BDDP packet", e);
+				}
+			}
+		});
+		if (!queued && log.isTraceEnabled()) {
+			log.trace("BDDP flood queue full, dropping packet-in from {}",
+					pinSwitch);
+		}
+	}
+
+	/**
+	 * Floods the BDDP packet. Writes outside the I/O threads are not flushed
+	 * by the controller, so flush must be set when called from a worker.
+	 */
+	protected void doFloodBDDP(long pinSwitch, OFPacketIn pi,
+			FloodlightContext cntx, boolean flush) {
 
 		TopologyInstanceFuzzyBalancer ti = getCurrentInstance(false);
 
@@ -781,33 +1165,25 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 			IOFSwitch sw = floodlightProvider.getSwitches().get(sid);
 			if (sw == null)
 				continue;
-			Collection<Short> enabledPorts = sw.getEnabledPortNumbers();
-			if (enabledPorts == null)
+			// enabled ports without the ports known to topology that are
+			// not broadcast domain ports, cached per instance
+			Set<Short> ports = floodPortCache.getFloodPorts(sw, ti);
+			if (ports == null)
 				continue;
-			Set<Short> ports = new HashSet<Short>();
-			ports.addAll(enabledPorts);
-
-			// all the ports known to topology // without tunnels.
-			// out of these, we need to choose only those that are
-			// broadcast port, otherwise, we should eliminate.
-			Set<Short> portsKnownToTopo = ti.getPortsWithLinks(sid);
-
-			if (portsKnownToTopo != null) {
-				for (short p : portsKnownToTopo) {
-					NodePortTuple npt = new NodePortTuple(sid, p);
-					if (ti.isBroadcastDomainPort(npt) == false) {
-						ports.remove(p);
-					}
-				}
-			}
 
 			// remove the incoming switch port
-			if (pinSwitch == sid) {
+			short excludedPort = OFPort.OFPP_NONE.getValue();
+			if (pinSwitch == sid && ports.contains(pi.getInPort())) {
+				ports = new HashSet<Short>(ports);
 				ports.remove(pi.getInPort());
+				excludedPort = pi.getInPort();
 			}
 
 			// we have all the switch ports to which we need to broadcast.
-			doMultiActionPacketOut(pi.getPacketData(), sw, ports, cntx);
+			doMultiActionPacketOut(pi.getPacketData(), sw, excludedPort,
+					ports, cntx);
+			if (flush)
+				sw.flush();
 		}
 
 	}
@@ -831,7 +1207,10 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 			if (bsn.getPayload() instanceof LLDP == false)
 				return Command.CONTINUE;
 
-			doFloodBDDP(sw.getId(), pi, cntx);
+			if (bddpFloodPool != null)
+				submitFloodBDDP(sw.getId(), pi);
+			else
+				doFloodBDDP(sw.getId(), pi, cntx);
 		} else {
 			return dropFilter(sw.getId(), pi, cntx);
 		}
@@ -847,13 +1226,9 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	@LogMessageDoc(level = "ERROR", message = "Error reading link discovery update.", explanation = "Unable to process link discovery update", recommendation = LogMessageDoc.REPORT_CONTROLLER_BUG)
 	public void applyUpdates() {
 		appliedUpdates.clear();
-		LDUpdate update = null;
-		while (ldUpdates.peek() != null) {
-			try {
-				update = ldUpdates.take();
-			} catch (Exception e) {
-				log.error("Error reading link discovery update.", e);
-			}
+		List<LDUpdate> batch = new ArrayList<LDUpdate>();
+		ldUpdates.drainTo(batch);
+		for (LDUpdate update : coalesceUpdates(batch)) {
 			if (log.isTraceEnabled()) {
 				log.trace("Applying update: {}", update);
 			}
@@ -869,6 +1244,52 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		}
 	}
 
+	/**
+	 * Keeps only the last update of every link of the batch, and drops it
+	 * too when it removes a link that is not there, e.g. a link added and
+	 * removed within the batch. Other updates are kept in order.
+	 */
+	protected List<LDUpdate> coalesceUpdates(List<LDUpdate> batch) {
+		Map<Link, Integer> last = new HashMap<Link, Integer>();
+		for (int i = 0; i < batch.size(); i++) {
+			Link link = updateLink(batch.get(i));
+			if (link != null)
+				last.put(link, i);
+		}
+		List<LDUpdate> result = new ArrayList<LDUpdate>(last.size());
+		for (int i = 0; i < batch.size(); i++) {
+			LDUpdate update = batch.get(i);
+			Link link = updateLink(update);
+			if (link != null) {
+				if (last.get(link) != i)
+					continue;
+				if (update.getOperation() == UpdateOperation.LINK_REMOVED
+						&& !hasLink(link))
+					continue;
+			}
+			result.add(update);
+		}
+		if (log.isDebugEnabled() && result.size() < batch.size()) {
+			log.debug("Coalesced {} link discovery updates into {}",
+					batch.size(), result.size());
+		}
+		return result;
+	}
+
+	protected static Link updateLink(LDUpdate update) {
+		if (update.getOperation() != UpdateOperation.LINK_UPDATED
+				&& update.getOperation() != UpdateOperation.LINK_REMOVED)
+			return null;
+		return new Link(update.getSrc(), update.getSrcPort(),
+				update.getDst(), update.getDstPort());
+	}
+
+	protected boolean hasLink(Link link) {
+		Set<Link> links = switchPortLinks.get(new NodePortTuple(link.getSrc(),
+				link.getSrcPort()));
+		return links != null && links.contains(link);
+	}
+
 	/**
 	 * This function computes a new topology.
 	 */
@@ -878,36 +1299,72 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	 * returns if a new instance of topology was created or not.
 	 */
 	protected boolean createNewInstance() {
-		Set<NodePortTuple> blockedPorts = new HashSet<NodePortTuple>();
+		return createNewInstance(currentEpoch.get());
+	}
 
+	/**
+	 * Computes and publishes a new instance from the updates applied since
+	 * base was current.
+	 */
+	protected boolean createNewInstance(TopologyEpoch base) {
 		if (!linksUpdated)
 			return false;
 
-		Map<NodePortTuple, Set<Link>> openflowLinks;
-		openflowLinks = new HashMap<NodePortTuple, Set<Link>>(switchPortLinks);
-
-		// Remove all tunnel links.
-		for (NodePortTuple npt : tunnelLinks.keySet()) {
-			if (openflowLinks.get(npt) != null)
-				openflowLinks.remove(npt);
-		}
-
-		// Remove all broadcast domain links.
-		for (NodePortTuple npt : portBroadcastDomainLinks.keySet()) {
-			if (openflowLinks.get(npt) != null)
-				openflowLinks.remove(npt);
-		}
+		// Tunnel and broadcast domain links are left out of the snapshot.
+		structure = TopologyStructure.build(structure, switchPorts,
+				switchPortLinks, portBroadcastDomainLinks.keySet(),
+				tunnelLinks.keySet(), dirtySwitches, dirtyPorts);
+		dirtySwitches.clear();
+		dirtyPorts.clear();
 
 		TopologyInstanceFuzzyBalancer nt = new TopologyInstanceFuzzyBalancer(
-				switchPorts, blockedPorts, openflowLinks,
-				portBroadcastDomainLinks.keySet(), tunnelLinks.keySet(),
-				mpbalance);
+				structure, mpbalance);
+		configureInstance(nt);
 		nt.compute();
-		// We set the instances with and without tunnels to be identical.
-		// If needed, we may compute them differently.
-		currentInstance = nt;
-		currentInstanceWithoutTunnels = nt;
-		return true;
+		if (flapDamping != null)
+			flapDamping.prune();
+		return publishInstance(nt, true, base);
+	}
+
+	/**
+	 * Applies the routing options to a new instance before it is computed.
+	 */
+	protected void configureInstance(TopologyInstanceFuzzyBalancer nt) {
+		nt.setFlowHashSpreading(flowHashSpreading, spreadTolerance);
+		nt.setFlapDamping(flapDamping);
+		nt.setFastFailover(fastFailover);
+		nt.setCandidateMode(candidateMode);
+		nt.setDenseRouteTable(denseRouteTable);
+		nt.setCompactTrees(compactTrees);
+		nt.setLazyTrees(lazyTrees, prewarmDestinations);
+		nt.setClusterExecutor(clusterExecutor);
+		nt.setComputeBudget(computeBudget);
+		nt.setPreviousInstance(getCurrentInstance(true));
+		if (routeCacheSize > 0)
+			routeCache.setCapacity(routeCacheSize);
+		else
+			routeCache.setCapacityForSwitches(switchPorts.size());
+	}
+
+	@Override
+	public RouteFlapDamping.FlapState getFlapStatistics(long src, long dst) {
+		if (flapDamping == null)
+			return null;
+		return flapDamping.getStatistics(src, dst);
+	}
+
+	/**
+	 * The BDDP worker pool, null if floods are done inline.
+	 */
+	public BddpFloodPool getBddpFloodPool() {
+		return bddpFloodPool;
+	}
+
+	@Override
+	public Map<RouteId, RouteFlapDamping.FlapState> getFlapStatistics() {
+		if (flapDamping == null)
+			return Collections.emptyMap();
+		return flapDamping.getStatistics();
 	}
 
 	public void informListeners() {
@@ -920,12 +1377,14 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	public void addSwitch(long sid) {
 		if (switchPorts.containsKey(sid) == false) {
 			switchPorts.put(sid, new HashSet<Short>());
+			dirtySwitches.add(sid);
 		}
 	}
 
 	private void addPortToSwitch(long s, short p) {
 		addSwitch(s);
-		switchPorts.get(s).add(p);
+		if (switchPorts.get(s).add(p))
+			dirtySwitches.add(s);
 	}
 
 	public boolean removeSwitchPort(long sw, short port) {
@@ -976,6 +1435,8 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 
 		NodePortTuple n1 = new NodePortTuple(l.getSrc(), l.getSrcPort());
 		NodePortTuple n2 = new NodePortTuple(l.getDst(), l.getDstPort());
+		dirtyPorts.add(n1);
+		dirtyPorts.add(n2);
 
 		if (s.get(n1) == null) {
 			s.put(n1, new HashSet<Link>());
@@ -1003,6 +1464,8 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		boolean result1 = false, result2 = false;
 		NodePortTuple n1 = new NodePortTuple(l.getSrc(), l.getSrcPort());
 		NodePortTuple n2 = new NodePortTuple(l.getDst(), l.getDstPort());
+		dirtyPorts.add(n1);
+		dirtyPorts.add(n2);
 
 		if (s.get(n1) != null) {
 			result1 = s.get(n1).remove(l);
@@ -1062,6 +1525,8 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 				link.getSrcPort());
 		NodePortTuple dstNpt = new NodePortTuple(link.getDst(),
 				link.getDstPort());
+		dirtySwitches.add(srcNpt.getNodeId());
+		dirtySwitches.add(dstNpt.getNodeId());
 
 		// Remove switch ports if there are no links through those switch ports
 		if (switchPortLinks.get(srcNpt) == null) {
@@ -1096,6 +1561,10 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 		tunnelLinks.clear();
 		directLinks.clear();
 		appliedUpdates.clear();
+		// The next snapshot is built from scratch
+		structure = null;
+		dirtySwitches.clear();
+		dirtyPorts.clear();
 	}
 
 	/**
@@ -1126,10 +1595,11 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 
 	public TopologyInstanceFuzzyBalancer getCurrentInstance(
 			boolean tunnelEnabled) {
-		if (tunnelEnabled)
-			return currentInstance;
-		else
-			return this.currentInstanceWithoutTunnels;
+		return currentEpoch.get().getInstance(tunnelEnabled);
+	}
+
+	public TopologyEpoch getCurrentEpoch() {
+		return currentEpoch.get();
 	}
 
 	public TopologyInstanceFuzzyBalancer getCurrentInstance() {
@@ -1172,32 +1642,19 @@ public class TopologyManagerFuzzyBalancer extends ServerResource implements
 	}
 
 	protected boolean createNewCostInstance() throws IOException {
-		Set<NodePortTuple> blockedPorts = new HashSet<NodePortTuple>();
-
-		Map<NodePortTuple, Set<Link>> openflowLinks = new HashMap<NodePortTuple, Set<Link>>(
-				switchPortLinks);
-
-		// Remove all tunnel links.
-		for (NodePortTuple npt : tunnelLinks.keySet()) {
-			if (openflowLinks.get(npt) != null)
-				openflowLinks.remove(npt);
-		}
-
-		// Remove all broadcast domain links.
-		for (NodePortTuple npt : portBroadcastDomainLinks.keySet()) {
-			if (openflowLinks.get(npt) != null)
-				openflowLinks.remove(npt);
-		}
+		TopologyEpoch base = currentEpoch.get();
+		// Costs do not change the structure, reuse the last snapshot
+		TopologyStructure s = structure;
+		if (s == null)
+			return false;
 
 		TopologyInstanceFuzzyBalancer nt = new TopologyInstanceFuzzyBalancer(
-				switchPorts, blockedPorts, openflowLinks,
-				portBroadcastDomainLinks.keySet(), tunnelLinks.keySet(),
-				mpbalance);
-		nt.compute();
-		// We set the instances with and without tunnels to be identical.
-		// If needed, we may compute them differently.
-		currentInstance = nt;
-		currentInstanceWithoutTunnels = nt;
-		return true;
+				s, mpbalance);
+		configureInstance(nt);
+		if (!nt.computeCostOnly())
+			log.debug("Structure changed, cost instance fully recomputed");
+		if (flapDamping != null)
+			flapDamping.prune();
+		return publishInstance(nt, false, base);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Immutable snapshot of the switch ports and openflow links handed to the
+ * topology instances. Instances share it by reference instead of copying
+ * it, so a cost epoch reuses the snapshot of the last structural epoch.
+ *
+ * A new snapshot shares the unchanged port and link sets of the previous
+ * one; only the sets of the switches and ports touched by link updates are
+ * copied from the manager.
+ */
+public class TopologyStructure {
+
+	protected final Map<Long, Set<Short>> switchPorts;
+	// Links of the manager without the tunnel and broadcast domain links
+	protected final Map<NodePortTuple, Set<Link>> switchPortLinks;
+	protected final Set<NodePortTuple> broadcastDomainPorts;
+	protected final Set<NodePortTuple> tunnelPorts;
+	// Computed on first use, the snapshot never changes
+	protected final ConcurrentMap<Long, Set<Short>> nonBroadcastPorts;
+
+	protected TopologyStructure(Map<Long, Set<Short>> switchPorts,
+			Map<NodePortTuple, Set<Link>> switchPortLinks,
+			Set<NodePortTuple> broadcastDomainPorts,
+			Set<NodePortTuple> tunnelPorts) {
+		this.switchPorts = Collections.unmodifiableMap(switchPorts);
+		this.switchPortLinks = Collections.unmodifiableMap(switchPortLinks);
+		this.broadcastDomainPorts = Collections
+				.unmodifiableSet(broadcastDomainPorts);
+		this.tunnelPorts = Collections.unmodifiableSet(tunnelPorts);
+		this.nonBroadcastPorts = new ConcurrentHashMap<Long, Set<Short>>();
+	}
+
+	/**
+	 * Builds the snapshot of the manager structures. With a previous
+	 * snapshot, only the given dirty switches and ports are copied.
+	 */
+	public static TopologyStructure build(TopologyStructure previous,
+			Map<Long, Set<Short>> switchPorts,
+			Map<NodePortTuple, Set<Link>> switchPortLinks,
+			Set<NodePortTuple> broadcastDomainPorts,
+			Set<NodePortTuple> tunnelPorts, Set<Long> dirtySwitches,
+			Set<NodePortTuple> dirtyPorts) {
+		Set<NodePortTuple> bdPorts = new HashSet<NodePortTuple>(
+				broadcastDomainPorts);
+		Set<NodePortTuple> tPorts = new HashSet<NodePortTuple>(tunnelPorts);
+		Map<Long, Set<Short>> ports;
+		Map<NodePortTuple, Set<Link>> links;
+
+		if (previous == null) {
+			ports = new HashMap<Long, Set<Short>>();
+			for (Map.Entry<Long, Set<Short>> e : switchPorts.entrySet())
+				ports.put(e.getKey(), copy(e.getValue()));
+			links = new HashMap<NodePortTuple, Set<Link>>();
+			for (Map.Entry<NodePortTuple, Set<Link>> e : switchPortLinks
+					.entrySet()) {
+				if (!bdPorts.contains(e.getKey()) && !tPorts.contains(e.getKey()))
+					links.put(e.getKey(), copy(e.getValue()));
+			}
+			return new TopologyStructure(ports, links, bdPorts, tPorts);
+		}
+
+		ports = new HashMap<Long, Set<Short>>(previous.switchPorts);
+		for (Long sw : dirtySwitches) {
+			Set<Short> p = switchPorts.get(sw);
+			if (p == null)
+				ports.remove(sw);
+			else
+				ports.put(sw, copy(p));
+		}
+
+		links = new HashMap<NodePortTuple, Set<Link>>(previous.switchPortLinks);
+		// A port can also turn into a tunnel or broadcast domain port
+		Set<NodePortTuple> changed = new HashSet<NodePortTuple>(dirtyPorts);
+		changed.addAll(bdPorts);
+		changed.addAll(tPorts);
+		changed.addAll(previous.broadcastDomainPorts);
+		changed.addAll(previous.tunnelPorts);
+		for (NodePortTuple npt : changed) {
+			Set<Link> l = switchPortLinks.get(npt);
+			if (l == null || bdPorts.contains(npt) || tPorts.contains(npt))
+				links.remove(npt);
+			else if (dirtyPorts.contains(npt) || !links.containsKey(npt))
+				links.put(npt, copy(l));
+		}
+		return new TopologyStructure(ports, links, bdPorts, tPorts);
+	}
+
+	protected static <T> Set<T> copy(Set<T> set) {
+		return Collections.unmodifiableSet(new HashSet<T>(set));
+	}
+
+	/**
+	 * Ports of the switch with links that are not broadcast domain ports.
+	 */
+	public Set<Short> getNonBroadcastPorts(long sw) {
+		Set<Short> ports = nonBroadcastPorts.get(sw);
+		if (ports == null) {
+			Set<Short> result = new HashSet<Short>();
+			Set<Short> p = switchPorts.get(sw);
+			if (p != null) {
+				for (Short port : p) {
+					if (!broadcastDomainPorts.contains(new NodePortTuple(sw, port)))
+						result.add(port);
+				}
+			}
+			ports = Collections.unmodifiableSet(result);
+			nonBroadcastPorts.put(sw, ports);
+		}
+		return ports;
+	}
+
+	public Map<Long, Set<Short>> getSwitchPorts() {
+		return switchPorts;
+	}
+
+	public Map<NodePortTuple, Set<Link>> getSwitchPortLinks() {
+		return switchPortLinks;
+	}
+
+	public Set<NodePortTuple> getBroadcastDomainPorts() {
+		return broadcastDomainPorts;
+	}
+
+	public Set<NodePortTuple> getTunnelPorts() {
+		return tunnelPorts;
+	}
+}
@@ -0,0 +1,132 @@
+package ru.sut.fuzzybalancer;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.counter.CounterValue;
+import net.floodlightcontroller.counter.ICounter;
+import net.floodlightcontroller.counter.ICounterStoreService;
+
+/**
+ * Metrics of the balancer pipeline, shared by the balancer and the
+ * topology manager through IFuzzyBalancerService. Histograms hold
+ * durations in microseconds or plain values, counters are mirrored to the
+ * counter store when there is one, gauges are read when reported.
+ *
+ * Histogram recording stays off the counter store on purpose, it is used
+ * on the packet-in path.
+ */
+public class BalancerMetrics {
+
+	public static final String COUNTER_PREFIX = "fuzzybalancer__";
+
+	// Names of the metrics recorded by the balancer and the topology
+	public static final String STATS_ROUND = "stats.round";
+	public static final String STATS_SWITCH = "stats.switch";
+	public static final String COSTS_UPDATE = "costs.update";
+	public static final String COSTS_CHANGED = "costs.changedLinks";
+	public static final String COST_EPOCHS = "costs.epochs";
+	public static final String COST_EPOCHS_DEFERRED = "costs.deferredEpochs";
+	public static final String HISTORY_DROPPED = "history.dropped";
+	public static final String INSTANCE_BUILD = "instance.build";
+	public static final String INSTANCE_CLUSTERS = "instance.clusters";
+	public static final String INSTANCE_TREES = "instance.trees";
+	public static final String INSTANCE_KPATHS = "instance.kpaths";
+	public static final String INSTANCE_SELECTION = "instance.selection";
+	public static final String YEN_CALLS = "instance.yenCalls";
+	public static final String PACKET_IN = "topology.packetIn";
+
+	public interface Gauge {
+		public long getValue();
+	}
+
+	protected static class Counter {
+		protected final AtomicLong value = new AtomicLong();
+		protected volatile ICounter storeCounter;
+	}
+
+	protected final ConcurrentMap<String, Histogram> histograms;
+	protected final ConcurrentMap<String, Counter> counters;
+	protected final ConcurrentMap<String, Gauge> gauges;
+	protected volatile ICounterStoreService counterStore;
+
+	public BalancerMetrics() {
+		histograms = new ConcurrentHashMap<String, Histogram>();
+		counters = new ConcurrentHashMap<String, Counter>();
+		gauges = new ConcurrentHashMap<String, Gauge>();
+	}
+
+	public void setCounterStore(ICounterStoreService counterStore) {
+		this.counterStore = counterStore;
+	}
+
+	public Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			Histogram newHistogram = new Histogram();
+			h = histograms.putIfAbsent(name, newHistogram);
+			if (h == null)
+				h = newHistogram;
+		}
+		return h;
+	}
+
+	public void record(String name, long value) {
+		histogram(name).record(value);
+	}
+
+	/**
+	 * Records the time elapsed since the given System.nanoTime(), in
+	 * microseconds.
+	 */
+	public void recordSince(String name, long startNanos) {
+		histogram(name).record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public void count(String name, long delta) {
+		Counter c = counters.get(name);
+		if (c == null) {
+			Counter newCounter = new Counter();
+			c = counters.putIfAbsent(name, newCounter);
+			if (c == null)
+				c = newCounter;
+		}
+		c.value.addAndGet(delta);
+
+		ICounterStoreService store = counterStore;
+		if (store == null)
+			return;
+		ICounter storeCounter = c.storeCounter;
+		if (storeCounter == null) {
+			storeCounter = store.createCounter(COUNTER_PREFIX + name,
+					CounterValue.CounterType.LONG);
+			c.storeCounter = storeCounter;
+		}
+		if (storeCounter != null)
+			storeCounter.increment(new Date(), delta);
+	}
+
+	public void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public Map<String, Object> getHistograms() {
+		Map<String, Object> result = new TreeMap<String, Object>();
+		for (Map.Entry<String, Histogram> e : histograms.entrySet())
+			result.put(e.getKey(), e.getValue().getSnapshot());
+		return result;
+	}
+
+	public Map<String, Long> getCounters() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : counters.entrySet())
+			result.put(e.getKey(), e.getValue().value.get());
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+			result.put(e.getKey(), e.getValue().getValue());
+		return result;
+	}
+}
@@ -1,5 +1,6 @@
 package ru.sut.fuzzybalancer;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -7,9 +8,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -18,9 +23,11 @@ import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyListener;
@@ -28,6 +35,8 @@ import net.floodlightcontroller.topology.ITopologyService;
 import net.sourceforge.jFuzzyLogic.membership.MembershipFunctionPieceWiseLinear;
 import net.sourceforge.jFuzzyLogic.membership.Value;
 
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPhysicalPort.OFPortFeatures;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.statistics.OFPortStatisticsReply;
@@ -37,6 +46,8 @@ import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.sut.fuzzybalancer.web.FuzzyBalancerWebRoutable;
+
 public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 		IFuzzyBalancerService {
 
@@ -44,6 +55,13 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 
 	public static final int UPDATE_PERIOD = 10; // seconds
 	public static final int MAX_LINK_COST = 100; // MIN = 1
+	public static final long EXPECTED_FLOW_BYTES = 1000000; // per UPDATE_PERIOD
+	public static final long DEFAULT_POLL_FLOOR = 2000; // milliseconds
+	public static final long DEFAULT_POLL_CEILING = 30000; // milliseconds
+	public static final double DEFAULT_POLL_BUDGET = 20; // requests per second
+	public static final long DEFAULT_SFLOW_FALLBACK = 60000; // milliseconds
+	// Minimum interval between cost epochs under adaptive polling
+	public static final int EPOCH_INTERVAL_FLOORS = 2; // poll floors
 
 	protected IFloodlightProviderService floodlightProvider;
 	protected ITopologyService topology;
@@ -52,17 +70,42 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 	protected IThreadPoolService threadPool;
 
 	// Data structures for caching counters
-	protected Map<Link, LinkCostInfo> linkBytes;
+	protected ConcurrentMap<Link, LinkCostInfo> linkBytes;
 	// Data structures for caching algorithm results
-	protected Map<Link, Integer> linkCost;
+	// Never modified once published, replaced as a whole under costLock
+	protected volatile Map<Link, Integer> linkCost;
+	protected final Object costLock = new Object();
+	// Load charged by routes handed out since the last counters of a link
+	protected ConcurrentMap<Link, AtomicLong> provisionalBytes;
+	protected volatile MembershipFunctionPieceWiseLinear anticipationFunction;
 
 	protected ArrayList<IFuzzyBalancerListener> costAware;
 
 	double minMembershipBW = 0.01;
 	double maxMembershipBW = 1;
 
+	protected boolean anticipateLoad = false;
+	protected long expectedFlowBytes = EXPECTED_FLOW_BYTES;
+
 	protected volatile boolean shuttingDown = false;
 
+	protected BalancerMetrics metrics;
+	protected volatile long costEpoch = 0;
+	// Cost epochs are published at most once per interval, in milliseconds
+	protected long minEpochInterval = 0;
+	protected long lastEpochTime = 0;
+	// Set when changed costs wait for the interval to be published
+	protected boolean epochPending = false;
+	protected LinkHistory history;
+	protected long lastHistoryUpdate = 0;
+	protected TrafficForecast forecast;
+	protected PollScheduler pollScheduler;
+	protected boolean adaptivePolling = false;
+	protected SFlowCollector sflowCollector;
+	// Set when pushed counters arrived since the last cost update
+	protected final AtomicBoolean countersPushed = new AtomicBoolean();
+	protected IRestApiService restApi;
+
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() {
 		Collection<Class<? extends IFloodlightService>> l = new ArrayList<Class<? extends IFloodlightService>>();
@@ -82,6 +125,8 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 		Collection<Class<? extends IFloodlightService>> l = new ArrayList<Class<? extends IFloodlightService>>();
 		l.add(IFloodlightProviderService.class);
 		l.add(IThreadPoolService.class);
+		l.add(ICounterStoreService.class);
+		l.add(IRestApiService.class);
 
 		return l;
 	}
@@ -94,81 +139,358 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 		topology = context.getServiceImpl(ITopologyService.class);
 		threadPool = context.getServiceImpl(IThreadPoolService.class);
 		linkDiscoverer = context.getServiceImpl(ILinkDiscoveryService.class);
+		restApi = context.getServiceImpl(IRestApiService.class);
+		metrics = new BalancerMetrics();
+		metrics.setCounterStore(context
+				.getServiceImpl(ICounterStoreService.class));
 
-		linkBytes = new HashMap<Link, LinkCostInfo>();
+		linkBytes = new ConcurrentHashMap<Link, LinkCostInfo>();
 		linkCost = new HashMap<Link, Integer>();
+		provisionalBytes = new ConcurrentHashMap<Link, AtomicLong>();
 
 		costAware = new ArrayList<IFuzzyBalancerListener>();
+
+		Map<String, String> configOptions = context.getConfigParams(this);
+		String option = configOptions.get("anticipateLoad");
+		if (option != null)
+			anticipateLoad = Boolean.parseBoolean(option);
+		option = configOptions.get("expectedFlowBytes");
+		if (option != null)
+			expectedFlowBytes = Long.parseLong(option);
+		log.debug("Load anticipation {}, expected flow bytes {}",
+				anticipateLoad, expectedFlowBytes);
+
+		long periodMillis = TimeUnit.SECONDS.toMillis(UPDATE_PERIOD);
+		option = configOptions.get("adaptivePolling");
+		if (option != null)
+			adaptivePolling = Boolean.parseBoolean(option);
+		if (adaptivePolling) {
+			long pollFloor = DEFAULT_POLL_FLOOR;
+			long pollCeiling = DEFAULT_POLL_CEILING;
+			double pollBudget = DEFAULT_POLL_BUDGET;
+			option = configOptions.get("pollFloor");
+			if (option != null)
+				pollFloor = Long.parseLong(option);
+			option = configOptions.get("pollCeiling");
+			if (option != null)
+				pollCeiling = Long.parseLong(option);
+			option = configOptions.get("pollBudget");
+			if (option != null)
+				pollBudget = Double.parseDouble(option);
+			if (pollFloor <= 0 || pollCeiling < pollFloor)
+				throw new FloodlightModuleException("Invalid polling interval "
+						+ pollFloor + " to " + pollCeiling + " ms");
+			pollScheduler = new PollScheduler(pollFloor, pollCeiling,
+					periodMillis, pollBudget);
+			// Costs change on every tick: rebuild at most every few ticks,
+			// so that routes still follow the hot links polled at the floor
+			minEpochInterval = EPOCH_INTERVAL_FLOORS * pollFloor;
+			log.debug("Adaptive polling every {} to {} ms, budget {}/s",
+					new Object[] { pollFloor, pollCeiling, pollBudget });
+		} else {
+			pollScheduler = new PollScheduler(periodMillis, periodMillis,
+					periodMillis, 0);
+		}
+
+		option = configOptions.get("minEpochInterval");
+		if (option != null)
+			minEpochInterval = Long.parseLong(option);
+		log.debug("Cost epochs at most every {} ms", minEpochInterval);
+
+		option = configOptions.get("sflowPort");
+		if (option != null) {
+			long fallback = DEFAULT_SFLOW_FALLBACK;
+			String fallbackOption = configOptions.get("sflowFallback");
+			if (fallbackOption != null)
+				fallback = Long.parseLong(fallbackOption);
+			try {
+				sflowCollector = new SFlowCollector(this,
+						Integer.parseInt(option), fallback,
+						SFlowCollector.parseAgents(configOptions
+								.get("sflowAgents")));
+			} catch (IllegalArgumentException e) {
+				throw new FloodlightModuleException(e.getMessage());
+			}
+		}
+
+		option = configOptions.get("forecast");
+		if (option != null && Boolean.parseBoolean(option)) {
+			double alpha = TrafficForecast.DEFAULT_ALPHA;
+			double beta = TrafficForecast.DEFAULT_BETA;
+			int horizon = TrafficForecast.DEFAULT_HORIZON;
+			option = configOptions.get("forecastAlpha");
+			if (option != null)
+				alpha = Double.parseDouble(option);
+			option = configOptions.get("forecastBeta");
+			if (option != null)
+				beta = Double.parseDouble(option);
+			option = configOptions.get("forecastHorizon");
+			if (option != null)
+				horizon = Integer.parseInt(option);
+			try {
+				forecast = new TrafficForecast(alpha, beta, horizon);
+			} catch (IllegalArgumentException e) {
+				throw new FloodlightModuleException(e.getMessage());
+			}
+			log.debug("Traffic forecast alpha {} beta {} horizon {}",
+					new Object[] { alpha, beta, horizon });
+		}
+
+		int historyLinks = LinkHistory.DEFAULT_LINKS;
+		int historyLength = LinkHistory.DEFAULT_LENGTH;
+		option = configOptions.get("historyLinks");
+		if (option != null)
+			historyLinks = Integer.parseInt(option);
+		option = configOptions.get("historyLength");
+		if (option != null)
+			historyLength = Integer.parseInt(option);
+		String historyFile = configOptions.get("historyFile");
+		if (historyLinks > 0 && historyLength > 0) {
+			try {
+				LinkHistory.checkSize(historyLinks, historyLength);
+			} catch (IllegalArgumentException e) {
+				throw new FloodlightModuleException(e.getMessage());
+			}
+			if (historyFile != null) {
+				try {
+					history = LinkHistory.mapFile(historyFile, historyLinks,
+							historyLength);
+				} catch (IOException e) {
+					throw new FloodlightModuleException(
+							"Could not map link history file " + historyFile
+									+ ": " + e.getMessage());
+				}
+			} else {
+				history = new LinkHistory(historyLinks, historyLength);
+			}
+			log.debug("Link history of {} samples for {} links",
+					historyLength, historyLinks);
+		}
 	}
 
 	@Override
 	public void startUp(FloodlightModuleContext context) {
 		if (topology != null)
 			topology.addListener(this);
+		if (restApi != null)
+			restApi.addRestletRoutable(new FuzzyBalancerWebRoutable());
+
+		if (sflowCollector != null) {
+			try {
+				sflowCollector.start();
+				registerCollectorGauges();
+			} catch (IOException e) {
+				log.error("Could not start the sFlow collector, polling all switches", e);
+				sflowCollector = null;
+			}
+		}
 
 		ScheduledExecutorService ses = threadPool.getScheduledExecutor();
 		updateTask = new SingletonTask(ses, new Runnable() {
 			@Override
 			public void run() {
 				try {
-					updateStatistics();
+					List<Long> polled = updateStatistics();
+					if (polled.isEmpty() && !countersPushed.getAndSet(false)) {
+						publishCostEpoch(false);
+						return;
+					}
 					updateCosts();
+					if (adaptivePolling)
+						adaptPolling(polled);
 
 				} catch (Exception e) {
 					log.error("Exception in Stats send timer.", e);
-					updateTask.reschedule(UPDATE_PERIOD, TimeUnit.SECONDS);
 				} finally {
 					if (!shuttingDown) {
 
-						updateTask.reschedule(UPDATE_PERIOD, TimeUnit.SECONDS);
+						updateTask.reschedule(pollScheduler.getTick(),
+								TimeUnit.MILLISECONDS);
 					}
 				}
 			}
 		});
-		updateTask.reschedule(UPDATE_PERIOD, TimeUnit.SECONDS);
+		updateTask.reschedule(pollScheduler.getTick(), TimeUnit.MILLISECONDS);
 
 	}
 
-	protected void updateStatistics() {
+	/**
+	 * Polls the switches that are due and returns them.
+	 */
+	protected List<Long> updateStatistics() {
+		long roundStart = System.nanoTime();
 
 		Map<Long, Set<Link>> sLinks = linkDiscoverer.getSwitchLinks();
 		Map<Long, IOFSwitch> switches = floodlightProvider.getSwitches();
+		pollScheduler.retainSwitches(switches.keySet());
+		long now = System.currentTimeMillis();
+		Collection<Long> polledSwitches = switches.keySet();
+		if (sflowCollector != null) {
+			// Switches exporting the counters of all their links are not polled
+			polledSwitches = new ArrayList<Long>(switches.size());
+			for (Long swId : switches.keySet()) {
+				if (!isExported(swId, sLinks.get(swId), now))
+					polledSwitches.add(swId);
+			}
+		}
+		List<Long> due = pollScheduler.getDueSwitches(polledSwitches, now);
 
-		for (Map.Entry<Long, IOFSwitch> sw : switches.entrySet()) {
+		for (Long swId : due) {
+			IOFSwitch sw = switches.get(swId);
+			if (sw == null)
+				continue;
 
-			List<OFStatistics> portsStat = getPortStatistics(sw.getValue());
-			Set<Link> links = sLinks.get(sw.getKey());
+			long switchStart = System.nanoTime();
+			List<OFStatistics> portsStat = getPortStatistics(sw);
+			metrics.recordSince(BalancerMetrics.STATS_SWITCH, switchStart);
+			long timestamp = System.currentTimeMillis();
+			Set<Link> links = sLinks.get(swId);
+			if (portsStat == null || links == null)
+				continue;
 
 			for (OFStatistics stat : portsStat) {
 				for (Link link : links) {
-					if ((sw.getKey() == (link.getSrc()) && ((OFPortStatisticsReply) stat)
+					if ((swId == (link.getSrc()) && ((OFPortStatisticsReply) stat)
 							.getPortNumber() == link.getSrcPort())) {
+						// Exported ports keep their pushed counters
+						if (sflowCollector != null
+								&& sflowCollector.isExporting(swId,
+										link.getSrcPort(), timestamp))
+							continue;
 						updateLinkInfo(link,
 								((OFPortStatisticsReply) stat)
-										.getTransmitBytes());
+										.getTransmitBytes(), timestamp,
+								LinkCostInfo.SOURCE_POLLING);
 					}
 				}
 			}
 		}
+		metrics.recordSince(BalancerMetrics.STATS_ROUND, roundStart);
+		return due;
 	}
 
-	protected void updateLinkInfo(Link link, long transmitBytes) {
-		if (linkBytes.containsKey(link)) {
-			linkBytes.get(link).updateBytesTransferred(transmitBytes);
-		} else {
-			LinkCostInfo lInfo = new LinkCostInfo();
-			lInfo.updateBytesTransferred(transmitBytes);
-			linkBytes.put(link, lInfo);
+	protected boolean isExported(long swId, Set<Link> links, long now) {
+		if (links == null)
+			return false;
+		boolean exported = false;
+		for (Link link : links) {
+			if (link.getSrc() != swId)
+				continue;
+			if (!sflowCollector.isExporting(swId, link.getSrcPort(), now))
+				return false;
+			exported = true;
+		}
+		return exported;
+	}
+
+	protected void updateLinkInfo(Link link, long transmitBytes,
+			long timestamp, int source) {
+		// Real counters now include the flows charged against this link
+		provisionalBytes.remove(link);
+		LinkCostInfo lInfo = linkBytes.get(link);
+		if (lInfo == null) {
+			LinkCostInfo newInfo = new LinkCostInfo();
+			lInfo = linkBytes.putIfAbsent(link, newInfo);
+			if (lInfo == null)
+				lInfo = newInfo;
+		}
+		lInfo.updateBytesTransferred(transmitBytes, timestamp, source);
+	}
+
+	/**
+	 * Merges transmit counters pushed by a switch, for the links out of the
+	 * given port.
+	 */
+	protected void pushLinkInfo(long swId, short port, long transmitBytes,
+			long timestamp) {
+		Set<Link> links = linkDiscoverer.getSwitchLinks().get(swId);
+		if (links == null)
+			return;
+		for (Link link : links) {
+			if (link.getSrc() == swId && link.getSrcPort() == port) {
+				updateLinkInfo(link, transmitBytes, timestamp,
+						LinkCostInfo.SOURCE_PUSHED);
+				countersPushed.set(true);
+			}
+		}
+	}
+
+	protected void registerCollectorGauges() {
+		metrics.registerGauge("sflow.datagrams", new BalancerMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return sflowCollector.getDatagrams();
+			}
+		});
+		metrics.registerGauge("sflow.counterRecords",
+				new BalancerMetrics.Gauge() {
+					@Override
+					public long getValue() {
+						return sflowCollector.getCounterRecords();
+					}
+				});
+		metrics.registerGauge("sflow.malformed", new BalancerMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return sflowCollector.getMalformed();
+			}
+		});
+		metrics.registerGauge("sflow.unknownAgents",
+				new BalancerMetrics.Gauge() {
+					@Override
+					public long getValue() {
+						return sflowCollector.getUnknownAgents();
+					}
+				});
+	}
+
+	/**
+	 * Adapts the polling interval of the polled switches. The activity of a
+	 * switch is the highest of its links, either its rate relative to the
+	 * busiest link or its rate change since the previous counters.
+	 */
+	protected void adaptPolling(List<Long> polled) {
+		long maxRate = 1;
+		for (LinkCostInfo lInfo : linkBytes.values())
+			maxRate = Math.max(maxRate, lInfo.getBytesPerSecond());
+
+		Map<Long, Set<Link>> sLinks = linkDiscoverer.getSwitchLinks();
+		for (Long swId : polled) {
+			double activity = 0;
+			Set<Link> links = sLinks.get(swId);
+			if (links != null) {
+				for (Link link : links) {
+					LinkCostInfo lInfo = linkBytes.get(link);
+					if (link.getSrc() != swId || lInfo == null)
+						continue;
+					long[] rates = lInfo.getRates();
+					long rate = rates[0];
+					long previous = rates[1];
+					double load = (double) rate / maxRate;
+					double change = (double) Math.abs(rate - previous)
+							/ Math.max(1, Math.max(rate, previous));
+					activity = Math.max(activity, Math.max(load, change));
+				}
+			}
+			pollScheduler.adapt(swId, activity);
 		}
 	}
 
 	protected void updateCosts() {
-		linkCost.clear();
+		long start = System.nanoTime();
+		Map<Link, Integer> newCost = new HashMap<Link, Integer>();
 		boolean isChanged = false;
+		int changedLinks = 0;
 		long maxBandwidth = 0;
 		long minBandwidth = 0;
+		// Bytes priced per link, forecast ones if forecasting is on
+		Map<Link, Long> costInputs = new HashMap<Link, Long>();
 		for (Map.Entry<Link, LinkCostInfo> linkStat : linkBytes.entrySet()) {
-			long delta = linkStat.getValue().getBytesDelta();
+			long delta = linkStat.getValue().getNormalisedDelta();
+			if (forecast != null)
+				delta = forecast.update(linkStat.getKey(), delta, linkStat
+						.getValue().getLastUpdate());
+			costInputs.put(linkStat.getKey(), delta);
 			if (maxBandwidth < delta)
 				maxBandwidth = delta;
 			if (minBandwidth > delta)
@@ -180,27 +502,89 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 		MembershipFunctionPieceWiseLinear bandwidthFunction = new MembershipFunctionPieceWiseLinear(
 				xVal, yVal);
 
+		// Scale for provisional charges, kept non-degenerate on an idle
+		// network so that the first burst of flows is spread as well.
+		Value[] xAnticipated = { new Value(minBandwidth),
+				new Value(Math.max(maxBandwidth, minBandwidth + expectedFlowBytes)) };
+		anticipationFunction = new MembershipFunctionPieceWiseLinear(
+				xAnticipated, yVal);
+
 		for (Map.Entry<Link, LinkCostInfo> linkStat : linkBytes.entrySet()) {
-			long delta = linkStat.getValue().getBytesDelta();
+			Long input = costInputs.get(linkStat.getKey());
+			long delta = (input == null) ? linkStat.getValue()
+					.getNormalisedDelta() : input;
 			int cost = (int) (bandwidthFunction.membership(delta) * MAX_LINK_COST);
 			if (cost < 1)
 				cost = 1;
 			if (cost != linkStat.getValue().getCost()) {
 				linkStat.getValue().setCost(cost);
 				isChanged = true;
+				changedLinks++;
+			}
+			newCost.put(linkStat.getKey(), cost);
+			if (log.isTraceEnabled()) {
+				log.trace("{} Cost: {}", linkStat.getKey(), cost);
 			}
-			linkCost.put(linkStat.getKey(), cost);
-			log.info(linkStat.getKey().toString() + " Cost: " + cost);
 		}
-
-		if (isChanged) {
-			informListeners();
+		synchronized (costLock) {
+			linkCost = newCost;
 		}
+		recordHistory();
+		metrics.recordSince(BalancerMetrics.COSTS_UPDATE, start);
+		metrics.count(BalancerMetrics.COSTS_CHANGED, changedLinks);
+
+		publishCostEpoch(isChanged);
 
 		// log.info(linkStat.getKey().toString() + " Bytes: " +
 		// linkStat.getValue().getBytesDelta());
 	}
 
+	/**
+	 * Informs the listeners of changed costs, which rebuilds the topology,
+	 * unless the last cost epoch is more recent than minEpochInterval. The
+	 * change is then kept pending and published on a later round.
+	 */
+	protected void publishCostEpoch(boolean changed) {
+		if (changed)
+			epochPending = true;
+		if (!epochPending)
+			return;
+		long now = System.currentTimeMillis();
+		if (now - lastEpochTime < minEpochInterval) {
+			if (changed)
+				metrics.count(BalancerMetrics.COST_EPOCHS_DEFERRED, 1);
+			return;
+		}
+		epochPending = false;
+		lastEpochTime = now;
+		costEpoch++;
+		metrics.count(BalancerMetrics.COST_EPOCHS, 1);
+		informListeners();
+	}
+
+	protected void recordHistory() {
+		if (history == null)
+			return;
+		long recorded = lastHistoryUpdate;
+		int dropped = 0;
+		for (Map.Entry<Link, LinkCostInfo> linkStat : linkBytes.entrySet()) {
+			LinkCostInfo lInfo = linkStat.getValue();
+			// Only the links polled since the last record
+			if (lInfo.getLastUpdate() <= lastHistoryUpdate)
+				continue;
+			recorded = Math.max(recorded, lInfo.getLastUpdate());
+			long speed = getLinkSpeed(linkStat.getKey());
+			double utilisation = (speed == 0) ? -1 : Math.min(1.0,
+					8.0 * lInfo.getBytesPerSecond() / speed);
+			if (!history.record(linkStat.getKey(), lInfo.getLastUpdate(),
+					lInfo.getNormalisedDelta(), utilisation, lInfo.getCost()))
+				dropped++;
+		}
+		lastHistoryUpdate = recorded;
+		if (dropped > 0)
+			metrics.count(BalancerMetrics.HISTORY_DROPPED, dropped);
+	}
+
 	protected List<OFStatistics> getPortStatistics(IOFSwitch sw) {
 		Future<List<OFStatistics>> future;
 		List<OFStatistics> values = null;
@@ -225,6 +609,14 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 
 	@Override
 	public void topologyChanged() {
+		synchronized (costLock) {
+			Map<Link, Integer> newCost = new HashMap<Link, Integer>(linkCost);
+			updateLinks(newCost);
+			linkCost = newCost;
+		}
+	}
+
+	protected void updateLinks(Map<Link, Integer> linkCost) {
 		for (LDUpdate update : topology.getLastLinkUpdates()) {
 			if (update.getOperation().equals(
 					ILinkDiscovery.UpdateOperation.LINK_UPDATED)) {
@@ -240,6 +632,12 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 						update.getSrcPort(), update.getDst(),
 						update.getDstPort());
 				linkCost.remove(linkUpdate);
+				linkBytes.remove(linkUpdate);
+				provisionalBytes.remove(linkUpdate);
+				if (forecast != null)
+					forecast.removeLink(linkUpdate);
+				if (history != null)
+					history.removeLink(linkUpdate);
 			}
 		}
 	}
@@ -259,7 +657,86 @@ public class FuzzyBalancer implements IFloodlightModule, ITopologyListener,
 
 	@Override
 	public HashMap<Link, Integer> getLinkCost() {
-		return (HashMap<Link, Integer>) linkCost;
+		return new HashMap<Link, Integer>(linkCost);
+	}
+
+	@Override
+	public boolean isLoadAnticipationEnabled() {
+		return anticipateLoad;
+	}
+
+	@Override
+	public void chargeLinks(List<Link> links) {
+		for (Link link : links) {
+			AtomicLong charged = provisionalBytes.get(link);
+			if (charged == null) {
+				AtomicLong newCharge = new AtomicLong();
+				charged = provisionalBytes.putIfAbsent(link, newCharge);
+				if (charged == null)
+					charged = newCharge;
+			}
+			charged.addAndGet(expectedFlowBytes);
+		}
+	}
+
+	@Override
+	public Map<Link, LinkCostInfo> getLinkInfo() {
+		return Collections.unmodifiableMap(linkBytes);
+	}
+
+	@Override
+	public long getCostEpoch() {
+		return costEpoch;
+	}
+
+	@Override
+	public long getLinkSpeed(Link link) {
+		IOFSwitch sw = floodlightProvider.getSwitches().get(link.getSrc());
+		if (sw == null)
+			return 0;
+		OFPhysicalPort port = sw.getPort(link.getSrcPort());
+		if (port == null)
+			return 0;
+		int features = port.getCurrentFeatures();
+		if ((features & OFPortFeatures.OFPPF_10GB_FD.getValue()) != 0)
+			return 10000000000L;
+		if ((features & (OFPortFeatures.OFPPF_1GB_FD.getValue() | OFPortFeatures.OFPPF_1GB_HD
+				.getValue())) != 0)
+			return 1000000000L;
+		if ((features & (OFPortFeatures.OFPPF_100MB_FD.getValue() | OFPortFeatures.OFPPF_100MB_HD
+				.getValue())) != 0)
+			return 100000000L;
+		if ((features & (OFPortFeatures.OFPPF_10MB_FD.getValue() | OFPortFeatures.OFPPF_10MB_HD
+				.getValue())) != 0)
+			return 10000000L;
+		return 0;
+	}
+
+	@Override
+	public LinkHistory getLinkHistory() {
+		return history;
+	}
+
+	@Override
+	public BalancerMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public int getAnticipatedCost(Link link) {
+		Integer cost = linkCost.get(link);
+		int baseCost = (cost == null) ? 1 : cost;
+		AtomicLong charged = provisionalBytes.get(link);
+		MembershipFunctionPieceWiseLinear function = anticipationFunction;
+		if (charged == null || function == null)
+			return baseCost;
+
+		LinkCostInfo lInfo = linkBytes.get(link);
+		long delta = (lInfo == null) ? 0 : lInfo.getNormalisedDelta();
+		if (forecast != null)
+			delta = forecast.getForecast(link, delta);
+		int anticipated = (int) (function.membership(delta + charged.get()) * MAX_LINK_COST);
+		return Math.max(baseCost, anticipated);
 	}
 
 }
@@ -0,0 +1,78 @@
+package ru.sut.fuzzybalancer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values in power of two buckets:
+ * bucket b counts the values of bit length b. Recording is a few atomic
+ * increments; percentiles are reported as the upper bound of their bucket.
+ */
+public class Histogram {
+
+	protected static final int BUCKETS = 64;
+
+	protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	protected final AtomicLong count = new AtomicLong();
+	protected final AtomicLong sum = new AtomicLong();
+	protected final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		// At most 63 bits once negative values are excluded
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given quantile, between 0 and 1.
+	 */
+	public long getPercentile(double quantile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets.get(b);
+			if (seen >= rank)
+				return Math.min((b == 0) ? 0 : (1L << b) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	public Map<String, Object> getSnapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("count", getCount());
+		snapshot.put("mean", getMean());
+		snapshot.put("p50", getPercentile(0.5));
+		snapshot.put("p90", getPercentile(0.9));
+		snapshot.put("p99", getPercentile(0.99));
+		snapshot.put("max", getMax());
+		return snapshot;
+	}
+}
@@ -1,6 +1,8 @@
 package ru.sut.fuzzybalancer;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.routing.Link;
@@ -11,4 +13,45 @@ public interface IFuzzyBalancerService extends IFloodlightService {
 
 	public HashMap<Link, Integer> getLinkCost();
 
+	public boolean isLoadAnticipationEnabled();
+
+	/**
+	 * Charges the expected rate of one new flow to each of the links until
+	 * their next counters arrive.
+	 */
+	public void chargeLinks(List<Link> links);
+
+	/**
+	 * Cost of the link including the provisional load of the routes handed
+	 * out since its last counters.
+	 */
+	public int getAnticipatedCost(Link link);
+
+	/**
+	 * Counters and cost of every measured link. The view is live and
+	 * weakly consistent, it can be iterated while the costs are updated.
+	 */
+	public Map<Link, LinkCostInfo> getLinkInfo();
+
+	/**
+	 * Incremented every time the link costs change.
+	 */
+	public long getCostEpoch();
+
+	/**
+	 * Current speed of the source port of the link in bits per second, 0 if
+	 * the switch does not advertise one.
+	 */
+	public long getLinkSpeed(Link link);
+
+	/**
+	 * Sample history of the links, null if disabled.
+	 */
+	public LinkHistory getLinkHistory();
+
+	/**
+	 * Histograms and counters of the balancer pipeline, topology included.
+	 */
+	public BalancerMetrics getMetrics();
+
 }
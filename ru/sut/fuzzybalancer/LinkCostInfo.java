@@ -1,39 +1,106 @@
 package ru.sut.fuzzybalancer;
 
+/**
+ * Counters and cost of a link. Counters come from the OpenFlow polling or
+ * from pushed telemetry, each with its own baseline, and are updated and
+ * read atomically.
+ */
 public class LinkCostInfo {
 
+	public static final int SOURCE_POLLING = 0;
+	public static final int SOURCE_PUSHED = 1;
+
 	 protected long bytesTransferred = 0;
 	 protected long bytesDelta = 0; 	 
 	 protected int cost = 1;
+	 protected long lastUpdate = 0;
+	 protected long baselineTime = 0;
+	 protected long interval = 0;
+	 protected long previousBytesPerSecond = 0;
+	 protected int source = SOURCE_POLLING;
 		
-	public long getBytesTransferred() {
+	public synchronized long getBytesTransferred() {
 		return bytesTransferred;
 	}
 
-	public void setBytesTransferred(long bytesTransferred) {
+	public synchronized void setBytesTransferred(long bytesTransferred) {
 		this.bytesTransferred = bytesTransferred;
 	}
 
-	public long getBytesDelta() {
+	public synchronized long getBytesDelta() {
 		return bytesDelta;
 	}
 
-	public void setBytesDelta(long bytesDelta) {
+	public synchronized void setBytesDelta(long bytesDelta) {
 		this.bytesDelta = bytesDelta;
 	}
 
-	public int getCost() {
+	public synchronized int getCost() {
 		return cost;
 	}
 
-	public void setCost(int cost) {
+	public synchronized void setCost(int cost) {
 		this.cost = cost;
 	}
 
-	public void updateBytesTransferred(long bytesTransferred) {
-		if (this.bytesTransferred != 0)
+	/**
+	 * Transmit rate between the last two counters.
+	 */
+	public synchronized long getBytesPerSecond() {
+		if (interval <= 0)
+			return bytesDelta / FuzzyBalancer.UPDATE_PERIOD;
+		return bytesDelta * 1000 / interval;
+	}
+
+	public synchronized long getPreviousBytesPerSecond() {
+		return previousBytesPerSecond;
+	}
+
+	/**
+	 * Bytes the link would carry over UPDATE_PERIOD at its last rate, so
+	 * that links polled at different intervals are priced alike.
+	 */
+	public synchronized long getNormalisedDelta() {
+		return getBytesPerSecond() * FuzzyBalancer.UPDATE_PERIOD;
+	}
+
+	/**
+	 * Time of the counters of the last rate, in milliseconds.
+	 */
+	public synchronized long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * The last rate and the previous one, read together.
+	 */
+	public synchronized long[] getRates() {
+		return new long[] { getBytesPerSecond(), previousBytesPerSecond };
+	}
+
+	/**
+	 * Takes the counters of the given source. Counters of another source
+	 * than the last one are not comparable, they only become the new
+	 * baseline and the last rate is kept until the next counters.
+	 */
+	public synchronized void updateBytesTransferred(long bytesTransferred,
+			long timestamp, int source) {
+		if (source != this.source) {
+			this.source = source;
+			this.bytesTransferred = bytesTransferred;
+			this.baselineTime = timestamp;
+			return;
+		}
+		previousBytesPerSecond = getBytesPerSecond();
+		if (this.bytesTransferred != 0) {
 			bytesDelta = bytesTransferred - this.bytesTransferred;
+			interval = (baselineTime == 0 || timestamp == 0) ? 0 : timestamp
+					- baselineTime;
+			// A new rate, seen by the costs, forecast and history
+			this.lastUpdate = timestamp;
+		}
 		this.bytesTransferred = bytesTransferred;
+		this.baselineTime = timestamp;
 	}
 
 	 
@@ -0,0 +1,231 @@
+package ru.sut.fuzzybalancer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Fixed-memory history of the links: a ring of (timestamp, bytes,
+ * utilisation, cost) samples per link, all held in one buffer outside the
+ * Java heap, either direct or mapped from a file. Links are given a ring
+ * when first recorded and release it when removed; once every ring is
+ * taken new links are not recorded.
+ *
+ * Samples are written by a single thread, the statistics round, and read
+ * by any thread. A reader checks the write count of the ring after
+ * copying the samples and drops those overwritten in the meantime. The
+ * mapped file only moves the history out of the heap, the assignment of
+ * rings to links is not persisted across restarts.
+ */
+public class LinkHistory {
+
+	public static final int DEFAULT_LINKS = 1024;
+	// Samples per link: an hour at UPDATE_PERIOD, but only 12 minutes for a
+	// link polled at the adaptive floor of 2 s
+	public static final int DEFAULT_LENGTH = 360;
+	// Buffers are indexed by int, mapped files included
+	public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+	// timestamp, bytes, utilisation (-1 if unknown), cost, padding
+	protected static final int SAMPLE_SIZE = 32;
+	protected static final int BYTES_OFFSET = 8;
+	protected static final int UTILISATION_OFFSET = 16;
+	protected static final int COST_OFFSET = 24;
+
+	public static class Sample {
+		protected final long timestamp;
+		protected final long bytes;
+		protected final double utilisation;
+		protected final int cost;
+
+		public Sample(long timestamp, long bytes, double utilisation, int cost) {
+			this.timestamp = timestamp;
+			this.bytes = bytes;
+			this.utilisation = utilisation;
+			this.cost = cost;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getUtilisation() {
+			return utilisation;
+		}
+
+		public int getCost() {
+			return cost;
+		}
+	}
+
+	protected final int links;
+	protected final int length;
+	protected final ByteBuffer buffer;
+	protected final ConcurrentMap<Link, Integer> rings;
+	protected final ConcurrentLinkedQueue<Integer> freeRings;
+	// Samples ever written to each ring
+	protected final AtomicLongArray written;
+
+	/**
+	 * History in a direct buffer.
+	 */
+	public LinkHistory(int links, int length) {
+		this(links, length, ByteBuffer.allocateDirect((int) checkSize(links,
+				length)));
+	}
+
+	protected LinkHistory(int links, int length, ByteBuffer buffer) {
+		this.links = links;
+		this.length = length;
+		this.buffer = buffer;
+		this.rings = new ConcurrentHashMap<Link, Integer>();
+		this.freeRings = new ConcurrentLinkedQueue<Integer>();
+		for (int i = 0; i < links; i++)
+			freeRings.add(i);
+		this.written = new AtomicLongArray(links);
+	}
+
+	/**
+	 * Bytes taken by the given number of links and samples per link.
+	 * Throws IllegalArgumentException if they do not fit in one buffer.
+	 */
+	public static long checkSize(int links, int length) {
+		if (links <= 0 || length <= 0)
+			throw new IllegalArgumentException("Invalid link history of "
+					+ length + " samples for " + links + " links");
+		long size = (long) links * length * SAMPLE_SIZE;
+		if (size > MAX_SIZE)
+			throw new IllegalArgumentException("Link history of " + length
+					+ " samples for " + links + " links takes " + size
+					+ " bytes, more than " + MAX_SIZE);
+		return size;
+	}
+
+	/**
+	 * History in a file mapped into memory, created or overwritten.
+	 */
+	public static LinkHistory mapFile(String path, int links, int length)
+			throws IOException {
+		checkSize(links, length);
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			long size = checkSize(links, length);
+			file.setLength(size);
+			// The mapping stays valid once the file is closed
+			ByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			return new LinkHistory(links, length, buffer);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Appends a sample to the ring of the link. Returns false if the link
+	 * has no ring and none is left.
+	 */
+	public boolean record(Link link, long timestamp, long bytes,
+			double utilisation, int cost) {
+		Integer ring = rings.get(link);
+		if (ring == null) {
+			ring = freeRings.poll();
+			if (ring == null)
+				return false;
+			written.set(ring, 0);
+			rings.put(link, ring);
+		}
+		long n = written.get(ring);
+		int offset = offset(ring, n);
+		buffer.putLong(offset, timestamp);
+		buffer.putLong(offset + BYTES_OFFSET, bytes);
+		buffer.putDouble(offset + UTILISATION_OFFSET, utilisation);
+		buffer.putInt(offset + COST_OFFSET, cost);
+		// Publishes the sample to the readers
+		written.set(ring, n + 1);
+		return true;
+	}
+
+	public void removeLink(Link link) {
+		Integer ring = rings.remove(link);
+		if (ring != null)
+			freeRings.add(ring);
+	}
+
+	// Fits in an int, the size was checked on creation
+	protected int offset(int ring, long n) {
+		return (ring * length + (int) (n % length)) * SAMPLE_SIZE;
+	}
+
+	/**
+	 * Samples of the link taken between from and to, both inclusive and in
+	 * milliseconds, oldest first.
+	 */
+	public List<Sample> query(Link link, long from, long to) {
+		Integer ring = rings.get(link);
+		if (ring == null)
+			return new ArrayList<Sample>();
+		long end = written.get(ring);
+		long start = Math.max(0, end - length);
+		List<Sample> samples = new ArrayList<Sample>();
+		long first = start;
+		for (long n = start; n < end; n++) {
+			int offset = offset(ring, n);
+			long timestamp = buffer.getLong(offset);
+			if (timestamp < from) {
+				first = n + 1;
+				continue;
+			}
+			if (timestamp > to)
+				break;
+			samples.add(new Sample(timestamp, buffer.getLong(offset
+					+ BYTES_OFFSET), buffer.getDouble(offset
+					+ UTILISATION_OFFSET), buffer.getInt(offset + COST_OFFSET)));
+		}
+
+		// Drop the samples overwritten while they were copied
+		long overwritten = written.get(ring) - length - first;
+		if (overwritten > 0)
+			samples = new ArrayList<Sample>(samples.subList(
+					(int) Math.min(overwritten, samples.size()), samples.size()));
+		return samples;
+	}
+
+	/**
+	 * The most recent samples of the link, at most count, oldest first.
+	 */
+	public List<Sample> getLatest(Link link, int count) {
+		return trim(query(link, 0, Long.MAX_VALUE), count);
+	}
+
+	protected static List<Sample> trim(List<Sample> samples, int count) {
+		if (samples.size() <= count)
+			return samples;
+		return new ArrayList<Sample>(samples.subList(samples.size() - count,
+				samples.size()));
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getCapacity() {
+		return links;
+	}
+
+	public int size() {
+		return rings.size();
+	}
+}
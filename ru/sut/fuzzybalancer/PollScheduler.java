@@ -0,0 +1,156 @@
+package ru.sut.fuzzybalancer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Statistics polling interval of every switch. Switches with busy or
+ * fluctuating links are polled more often, down to the floor, and quiet
+ * ones less often, up to the ceiling. The requests of all switches are
+ * bounded by a budget in requests per second: when more switches are due
+ * than the budget allows, the most overdue are polled first and the others
+ * wait for the next tick.
+ *
+ * Used by the statistics task only, not thread-safe apart from the reads
+ * of the intervals.
+ */
+public class PollScheduler {
+
+	// Activity of a switch above which its interval is halved
+	public static final double HOT_ACTIVITY = 0.5;
+	// Activity of a switch below which its interval grows by half
+	public static final double QUIET_ACTIVITY = 0.1;
+
+	protected static class SwitchState {
+		protected long interval;
+		protected long nextPoll;
+	}
+
+	protected final long floor;
+	protected final long ceiling;
+	protected final long initialInterval;
+	protected final double budget;
+	protected double tokens;
+	protected long lastRefill = -1;
+	protected final ConcurrentMap<Long, SwitchState> states;
+
+	/**
+	 * Intervals in milliseconds, budget in requests per second, 0 for none.
+	 */
+	public PollScheduler(long floor, long ceiling, long initialInterval,
+			double budget) {
+		this.floor = floor;
+		this.ceiling = ceiling;
+		this.initialInterval = Math.max(floor, Math.min(ceiling,
+				initialInterval));
+		this.budget = budget;
+		this.states = new ConcurrentHashMap<Long, SwitchState>();
+	}
+
+	/**
+	 * Period of the statistics task: the shortest interval a switch can
+	 * have.
+	 */
+	public long getTick() {
+		return floor;
+	}
+
+	protected SwitchState getState(long sw, long now) {
+		SwitchState state = states.get(sw);
+		if (state == null) {
+			state = new SwitchState();
+			state.interval = initialInterval;
+			state.nextPoll = now;
+			states.put(sw, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Switches to poll now, most overdue first, within the budget. The
+	 * returned switches are considered polled.
+	 */
+	public List<Long> getDueSwitches(Collection<Long> switches, long now) {
+		List<Long> result = new ArrayList<Long>();
+		for (Long sw : switches) {
+			SwitchState state = getState(sw, now);
+			if (state.nextPoll <= now)
+				result.add(sw);
+		}
+
+		refill(now);
+		if (budget > 0 && result.size() > tokens) {
+			final ConcurrentMap<Long, SwitchState> s = states;
+			Collections.sort(result, new Comparator<Long>() {
+				@Override
+				public int compare(Long a, Long b) {
+					long na = s.get(a).nextPoll;
+					long nb = s.get(b).nextPoll;
+					return (na < nb) ? -1 : ((na == nb) ? 0 : 1);
+				}
+			});
+			result = new ArrayList<Long>(result.subList(0, (int) tokens));
+		}
+		if (budget > 0)
+			tokens -= result.size();
+
+		for (Long sw : result) {
+			SwitchState state = states.get(sw);
+			state.nextPoll = now + state.interval;
+		}
+		return result;
+	}
+
+	/**
+	 * Accrues the requests allowed since the last tick, keeping at most
+	 * one tick worth of them, or one second if the tick is shorter.
+	 */
+	protected void refill(long now) {
+		if (budget <= 0)
+			return;
+		double burst = budget * Math.max(1.0, floor / 1000.0);
+		if (lastRefill < 0) {
+			tokens = burst;
+		} else {
+			tokens = Math.min(burst, tokens + budget * (now - lastRefill)
+					/ 1000.0);
+		}
+		lastRefill = now;
+	}
+
+	/**
+	 * Adapts the interval of the switch to the activity of its links
+	 * measured at its last poll, between 0 (idle, steady) and 1.
+	 */
+	public void adapt(long sw, double activity) {
+		SwitchState state = states.get(sw);
+		if (state == null)
+			return;
+		long interval = state.interval;
+		if (activity >= HOT_ACTIVITY)
+			interval = interval / 2;
+		else if (activity < QUIET_ACTIVITY)
+			interval = interval + interval / 2;
+		interval = Math.max(floor, Math.min(ceiling, interval));
+		if (interval < state.interval)
+			state.nextPoll -= state.interval - interval;
+		state.interval = interval;
+	}
+
+	public long getInterval(long sw) {
+		SwitchState state = states.get(sw);
+		return (state == null) ? initialInterval : state.interval;
+	}
+
+	/**
+	 * Forgets the switches that are no longer connected.
+	 */
+	public void retainSwitches(Collection<Long> switches) {
+		states.keySet().retainAll(switches);
+	}
+}
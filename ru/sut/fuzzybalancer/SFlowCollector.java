@@ -0,0 +1,291 @@
+package ru.sut.fuzzybalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.topology.NodePortTuple;
+
+import org.openflow.util.HexString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collector of the interface counters pushed by the switches as sFlow v5
+ * counter samples. Datagrams are received on a non-blocking channel into
+ * one direct buffer and parsed in place. The transmit octets of a generic
+ * interface counters record are merged into the per-link state like the
+ * polled ones, and the port is then left out of the polling until it
+ * stops being exported.
+ *
+ * An agent is mapped to a switch by the configured agent addresses, or
+ * else by the address of its OpenFlow connection. The ifIndex of a record
+ * is taken as the OpenFlow port number. Only IPv4 agents are mapped; flow
+ * samples are skipped, the counters carry the rates.
+ */
+public class SFlowCollector implements Runnable {
+
+	protected static Logger log = LoggerFactory.getLogger(SFlowCollector.class);
+
+	public static final int DEFAULT_PORT = 6343;
+	protected static final int MAX_DATAGRAM = 65535;
+
+	protected static final int SFLOW_VERSION = 5;
+	protected static final int ADDRESS_IPV4 = 1;
+	protected static final int ADDRESS_IPV6 = 2;
+	protected static final int COUNTERS_SAMPLE = 2;
+	protected static final int EXPANDED_COUNTERS_SAMPLE = 4;
+	protected static final int GENERIC_INTERFACE_COUNTERS = 1;
+	protected static final int GENERIC_INTERFACE_LENGTH = 88;
+	protected static final int IF_OUT_OCTETS_OFFSET = 56;
+
+	protected final FuzzyBalancer balancer;
+	protected final int port;
+	protected final long fallbackMillis;
+	// Configured agent IPv4 addresses to switch dpids
+	protected final Map<Integer, Long> agents;
+	// Agents found by the address of their OpenFlow connection
+	protected final ConcurrentMap<Integer, Long> learnedAgents;
+	// Exported ports, to the time of their last counters
+	protected final ConcurrentMap<NodePortTuple, Long> exporters;
+	protected final ByteBuffer buffer;
+	protected DatagramChannel channel;
+	protected Selector selector;
+	protected Thread thread;
+	protected volatile boolean running = false;
+
+	protected final AtomicLong datagrams = new AtomicLong();
+	protected final AtomicLong counterRecords = new AtomicLong();
+	protected final AtomicLong malformed = new AtomicLong();
+	protected final AtomicLong unknownAgents = new AtomicLong();
+
+	/**
+	 * Switches are polled again once they have not exported for the given
+	 * time in milliseconds.
+	 */
+	public SFlowCollector(FuzzyBalancer balancer, int port,
+			long fallbackMillis, Map<Integer, Long> agents) {
+		this.balancer = balancer;
+		this.port = port;
+		this.fallbackMillis = fallbackMillis;
+		this.agents = agents;
+		this.learnedAgents = new ConcurrentHashMap<Integer, Long>();
+		this.exporters = new ConcurrentHashMap<NodePortTuple, Long>();
+		this.buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().bind(new InetSocketAddress(port));
+		channel.register(selector, SelectionKey.OP_READ);
+		running = true;
+		thread = new Thread(this, "FuzzyBalancer-sFlow");
+		thread.setDaemon(true);
+		thread.start();
+		log.info("Listening for sFlow counters on UDP port {}", port);
+	}
+
+	public void stop() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				if (selector.select(1000) == 0)
+					continue;
+				selector.selectedKeys().clear();
+				receive();
+			}
+		} catch (IOException e) {
+			log.error("sFlow collector stopped", e);
+		} finally {
+			try {
+				channel.close();
+				selector.close();
+			} catch (IOException e) {
+				log.debug("Error closing the sFlow channel", e);
+			}
+		}
+	}
+
+	/**
+	 * Drains the datagrams queued on the channel.
+	 */
+	protected void receive() throws IOException {
+		while (true) {
+			buffer.clear();
+			SocketAddress from = channel.receive(buffer);
+			if (from == null)
+				return;
+			buffer.flip();
+			datagrams.incrementAndGet();
+			try {
+				parseDatagram(buffer, System.currentTimeMillis());
+			} catch (IndexOutOfBoundsException e) {
+				malformed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Parses the datagram between position and limit with absolute reads.
+	 * Truncated datagrams throw IndexOutOfBoundsException.
+	 */
+	protected void parseDatagram(ByteBuffer b, long now) {
+		int p = b.position();
+		if (b.getInt(p) != SFLOW_VERSION) {
+			malformed.incrementAndGet();
+			return;
+		}
+		int addressType = b.getInt(p + 4);
+		int agentAddress = 0;
+		if (addressType == ADDRESS_IPV4) {
+			agentAddress = b.getInt(p + 8);
+			p += 12;
+		} else if (addressType == ADDRESS_IPV6) {
+			p += 24;
+		} else {
+			malformed.incrementAndGet();
+			return;
+		}
+		// sub agent id, sequence number, uptime
+		int samples = b.getInt(p + 12);
+		p += 16;
+
+		Long dpid = (addressType == ADDRESS_IPV4) ? findSwitch(agentAddress)
+				: null;
+		if (dpid == null) {
+			unknownAgents.incrementAndGet();
+			return;
+		}
+
+		for (int i = 0; i < samples; i++) {
+			int format = b.getInt(p);
+			int length = b.getInt(p + 4);
+			int data = p + 8;
+			p = data + length;
+			if (length < 0 || p > b.limit())
+				throw new IndexOutOfBoundsException();
+			if (format == COUNTERS_SAMPLE)
+				parseCounterRecords(b, dpid, data + 12, b.getInt(data + 8), now);
+			else if (format == EXPANDED_COUNTERS_SAMPLE)
+				parseCounterRecords(b, dpid, data + 16, b.getInt(data + 12), now);
+		}
+	}
+
+	protected void parseCounterRecords(ByteBuffer b, long dpid, int p,
+			int records, long now) {
+		for (int i = 0; i < records; i++) {
+			int format = b.getInt(p);
+			int length = b.getInt(p + 4);
+			int data = p + 8;
+			p = data + length;
+			if (length < 0 || p > b.limit())
+				throw new IndexOutOfBoundsException();
+			if (format != GENERIC_INTERFACE_COUNTERS
+					|| length < GENERIC_INTERFACE_LENGTH)
+				continue;
+			counterRecords.incrementAndGet();
+			short ifIndex = (short) b.getInt(data);
+			exporters.put(new NodePortTuple(dpid, ifIndex), now);
+			long outOctets = b.getLong(data + IF_OUT_OCTETS_OFFSET);
+			balancer.pushLinkInfo(dpid, ifIndex, outOctets, now);
+		}
+	}
+
+	protected Long findSwitch(int agentAddress) {
+		Long dpid = agents.get(agentAddress);
+		if (dpid == null)
+			dpid = learnedAgents.get(agentAddress);
+		if (dpid != null)
+			return dpid;
+		for (IOFSwitch sw : balancer.floodlightProvider.getSwitches().values()) {
+			SocketAddress address = sw.getInetAddress();
+			if (address instanceof InetSocketAddress
+					&& ((InetSocketAddress) address).getAddress() != null
+					&& toInt(((InetSocketAddress) address).getAddress()
+							.getAddress()) == agentAddress) {
+				learnedAgents.put(agentAddress, sw.getId());
+				return sw.getId();
+			}
+		}
+		return null;
+	}
+
+	protected static int toInt(byte[] address) {
+		if (address.length != 4)
+			return 0;
+		return ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16)
+				| ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+	}
+
+	/**
+	 * Whether the port was exported recently enough to be left out of the
+	 * polling.
+	 */
+	public boolean isExporting(long dpid, short port, long now) {
+		Long last = exporters.get(new NodePortTuple(dpid, port));
+		return last != null && now - last < fallbackMillis;
+	}
+
+	public long getDatagrams() {
+		return datagrams.get();
+	}
+
+	public long getCounterRecords() {
+		return counterRecords.get();
+	}
+
+	public long getMalformed() {
+		return malformed.get();
+	}
+
+	public long getUnknownAgents() {
+		return unknownAgents.get();
+	}
+
+	/**
+	 * Parses "a.b.c.d=dpid" entries separated by commas, dpids in decimal
+	 * or colon separated hex.
+	 */
+	public static Map<Integer, Long> parseAgents(String value) {
+		Map<Integer, Long> agents = new ConcurrentHashMap<Integer, Long>();
+		if (value == null)
+			return agents;
+		for (String entry : value.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+			int eq = entry.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Invalid sFlow agent "
+						+ entry);
+			String[] octets = entry.substring(0, eq).trim().split("\\.");
+			if (octets.length != 4)
+				throw new IllegalArgumentException("Invalid sFlow agent "
+						+ entry);
+			int address = 0;
+			for (String octet : octets)
+				address = (address << 8) | (Integer.parseInt(octet) & 0xff);
+			String dpid = entry.substring(eq + 1).trim();
+			agents.put(address, (dpid.indexOf(':') >= 0) ? HexString
+					.toLong(dpid) : Long.parseLong(dpid));
+		}
+		return agents;
+	}
+}
@@ -0,0 +1,80 @@
+package ru.sut.fuzzybalancer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Short-term forecast of the bytes a link will carry, by Holt's linear
+ * exponential smoothing: a smoothed level and trend per link, updated once
+ * per statistics round and projected the given number of rounds ahead.
+ * Forecasts never go below zero.
+ */
+public class TrafficForecast {
+
+	public static final double DEFAULT_ALPHA = 0.5;
+	public static final double DEFAULT_BETA = 0.3;
+	public static final int DEFAULT_HORIZON = 1; // rounds
+
+	protected static class State {
+		protected double level;
+		protected double trend;
+		protected long forecast;
+		protected long timestamp;
+	}
+
+	protected final double alpha;
+	protected final double beta;
+	protected final int horizon;
+	protected final ConcurrentMap<Link, State> states;
+
+	public TrafficForecast(double alpha, double beta, int horizon) {
+		if (alpha <= 0 || alpha > 1 || beta < 0 || beta > 1)
+			throw new IllegalArgumentException(
+					"Smoothing factors must be in (0, 1], got alpha " + alpha
+							+ " beta " + beta);
+		this.alpha = alpha;
+		this.beta = beta;
+		this.horizon = horizon;
+		this.states = new ConcurrentHashMap<Link, State>();
+	}
+
+	/**
+	 * Folds the bytes of the counters taken at the given time into the
+	 * model of the link and returns the forecast. Counters already folded
+	 * are not counted twice. The first observation of a link is its own
+	 * forecast.
+	 */
+	public long update(Link link, long bytes, long timestamp) {
+		State state = states.get(link);
+		if (state == null) {
+			state = new State();
+			state.level = bytes;
+			state.forecast = bytes;
+			state.timestamp = timestamp;
+			states.put(link, state);
+			return bytes;
+		}
+		if (state.timestamp == timestamp)
+			return state.forecast;
+		state.timestamp = timestamp;
+		double level = alpha * bytes + (1 - alpha) * (state.level + state.trend);
+		state.trend = beta * (level - state.level) + (1 - beta) * state.trend;
+		state.level = level;
+		state.forecast = Math.max(0, Math.round(level + horizon * state.trend));
+		return state.forecast;
+	}
+
+	/**
+	 * Last forecast of the link, or the given bytes if there is none.
+	 */
+	public long getForecast(Link link, long bytes) {
+		State state = states.get(link);
+		return (state == null) ? bytes : state.forecast;
+	}
+
+	public void removeLink(Link link) {
+		states.remove(link);
+	}
+}
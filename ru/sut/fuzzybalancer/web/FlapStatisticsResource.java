@@ -0,0 +1,81 @@
+package ru.sut.fuzzybalancer.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.routing.RouteId;
+import net.floodlightcontroller.topology.IFlowRoutingService;
+import net.floodlightcontroller.topology.RouteFlapDamping;
+
+import org.openflow.util.HexString;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Flap statistics of the selected paths, of one switch pair if src-dpid
+ * and dst-dpid are given, or else of every known pair. Penalties are
+ * decayed to the time of the request.
+ */
+public class FlapStatisticsResource extends ServerResource {
+
+	@Get("json")
+	public Object retrieve() {
+		IFlowRoutingService routing = (IFlowRoutingService) getContext()
+				.getAttributes().get(
+						IFlowRoutingService.class.getCanonicalName());
+		if (routing == null) {
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+					"The balancing topology manager is not running");
+			return null;
+		}
+
+		String srcDpid = (String) getRequestAttributes().get("src-dpid");
+		String dstDpid = (String) getRequestAttributes().get("dst-dpid");
+		if (srcDpid == null || dstDpid == null) {
+			List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+			for (Map.Entry<RouteId, RouteFlapDamping.FlapState> entry : routing
+					.getFlapStatistics().entrySet()) {
+				result.add(toMap(entry.getKey().getSrc(), entry.getKey()
+						.getDst(), entry.getValue()));
+			}
+			return result;
+		}
+
+		long src, dst;
+		try {
+			src = LinkCostsResource.parseDpid(srcDpid);
+			dst = LinkCostsResource.parseDpid(dstDpid);
+		} catch (NumberFormatException e) {
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+		RouteFlapDamping.FlapState state = routing.getFlapStatistics(src, dst);
+		if (state == null) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND,
+					"No flap statistics for the switch pair");
+			return null;
+		}
+		return toMap(src, dst, state);
+	}
+
+	protected static Map<String, Object> toMap(long src, long dst,
+			RouteFlapDamping.FlapState state) {
+		List<String> incumbent = new ArrayList<String>();
+		if (state.getIncumbent() != null) {
+			for (long sw : state.getIncumbent())
+				incumbent.add(HexString.toHexString(sw));
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("src-switch", HexString.toHexString(src));
+		result.put("dst-switch", HexString.toHexString(dst));
+		result.put("incumbent", incumbent);
+		result.put("penalty", state.getPenalty());
+		result.put("flaps", state.getFlapCount());
+		result.put("suppressed", state.getSuppressedCount());
+		result.put("last-flap", state.getLastFlap());
+		return result;
+	}
+}
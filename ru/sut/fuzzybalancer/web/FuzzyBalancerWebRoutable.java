@@ -0,0 +1,31 @@
+package ru.sut.fuzzybalancer.web;
+
+import net.floodlightcontroller.restserver.RestletRoutable;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.routing.Router;
+
+public class FuzzyBalancerWebRoutable implements RestletRoutable {
+
+	@Override
+	public Restlet getRestlet(Context context) {
+		Router router = new Router(context);
+		router.attach("/metrics/json", MetricsResource.class);
+		router.attach("/links/json", LinkCostsResource.class);
+		router.attach("/paths/{src-dpid}/{dst-dpid}/json",
+				PathChoicesResource.class);
+		router.attach(
+				"/history/{src-dpid}/{src-port}/{dst-dpid}/{dst-port}/json",
+				LinkHistoryResource.class);
+		router.attach("/flaps/json", FlapStatisticsResource.class);
+		router.attach("/flaps/{src-dpid}/{dst-dpid}/json",
+				FlapStatisticsResource.class);
+		return router;
+	}
+
+	@Override
+	public String basePath() {
+		return "/wm/fuzzybalancer";
+	}
+}
@@ -0,0 +1,154 @@
+package ru.sut.fuzzybalancer.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import net.floodlightcontroller.routing.Link;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.openflow.util.HexString;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import ru.sut.fuzzybalancer.IFuzzyBalancerService;
+import ru.sut.fuzzybalancer.LinkCostInfo;
+
+/**
+ * Rate, utilisation and cost of the measured links. The links are written
+ * to the response as they are read from the live link table, nothing is
+ * copied or locked, so the result of a large fabric is streamed rather
+ * than built in memory.
+ *
+ * Optional query parameters: switch (links from or to the dpid), src, dst,
+ * minCost, minUtilisation (0 to 1) and limit.
+ */
+public class LinkCostsResource extends ServerResource {
+
+	protected static final JsonFactory jsonFactory = new JsonFactory();
+
+	protected static class Filter {
+		protected long sw = -1;
+		protected long src = -1;
+		protected long dst = -1;
+		protected int minCost = 0;
+		protected double minUtilisation = 0;
+		protected int limit = Integer.MAX_VALUE;
+
+		protected boolean matches(Link link, LinkCostInfo info,
+				double utilisation) {
+			if (sw != -1 && link.getSrc() != sw && link.getDst() != sw)
+				return false;
+			if (src != -1 && link.getSrc() != src)
+				return false;
+			if (dst != -1 && link.getDst() != dst)
+				return false;
+			if (info.getCost() < minCost)
+				return false;
+			// Links of unknown speed have no utilisation to compare
+			if (minUtilisation > 0 && (utilisation < 0 || utilisation < minUtilisation))
+				return false;
+			return true;
+		}
+	}
+
+	@Get("json")
+	public Representation retrieve() {
+		final IFuzzyBalancerService balancer = (IFuzzyBalancerService) getContext()
+				.getAttributes().get(
+						IFuzzyBalancerService.class.getCanonicalName());
+		final Filter filter;
+		try {
+			filter = parseFilter(getQuery());
+		} catch (IllegalArgumentException e) {
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+
+		return new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				JsonGenerator g = jsonFactory.createJsonGenerator(out,
+						JsonEncoding.UTF8);
+				writeLinks(g, balancer, filter);
+				g.close();
+			}
+		};
+	}
+
+	protected Filter parseFilter(Form query) {
+		Filter filter = new Filter();
+		String value = query.getFirstValue("switch");
+		if (value != null)
+			filter.sw = parseDpid(value);
+		value = query.getFirstValue("src");
+		if (value != null)
+			filter.src = parseDpid(value);
+		value = query.getFirstValue("dst");
+		if (value != null)
+			filter.dst = parseDpid(value);
+		value = query.getFirstValue("minCost");
+		if (value != null)
+			filter.minCost = Integer.parseInt(value);
+		value = query.getFirstValue("minUtilisation");
+		if (value != null)
+			filter.minUtilisation = Double.parseDouble(value);
+		value = query.getFirstValue("limit");
+		if (value != null)
+			filter.limit = Integer.parseInt(value);
+		return filter;
+	}
+
+	/**
+	 * Accepts a dpid in the colon separated hex form or as a decimal.
+	 */
+	protected static long parseDpid(String value) {
+		if (value.indexOf(':') >= 0)
+			return HexString.toLong(value);
+		return Long.parseLong(value);
+	}
+
+	protected void writeLinks(JsonGenerator g, IFuzzyBalancerService balancer,
+			Filter filter) throws IOException {
+		g.writeStartObject();
+		g.writeNumberField("epoch", balancer.getCostEpoch());
+		g.writeArrayFieldStart("links");
+		int written = 0;
+		for (Map.Entry<Link, LinkCostInfo> e : balancer.getLinkInfo()
+				.entrySet()) {
+			if (written >= filter.limit)
+				break;
+			Link link = e.getKey();
+			LinkCostInfo info = e.getValue();
+			long bytesPerSecond = info.getBytesPerSecond();
+			long speed = balancer.getLinkSpeed(link);
+			double utilisation = (speed == 0) ? -1
+					: Math.min(1.0, 8.0 * bytesPerSecond / speed);
+			if (!filter.matches(link, info, utilisation))
+				continue;
+
+			g.writeStartObject();
+			g.writeStringField("src-switch", HexString.toHexString(link.getSrc()));
+			g.writeNumberField("src-port", link.getSrcPort() & 0xffff);
+			g.writeStringField("dst-switch", HexString.toHexString(link.getDst()));
+			g.writeNumberField("dst-port", link.getDstPort() & 0xffff);
+			g.writeNumberField("bytes-per-second", bytesPerSecond);
+			if (speed == 0)
+				g.writeNullField("utilisation");
+			else
+				g.writeNumberField("utilisation", utilisation);
+			g.writeNumberField("cost", info.getCost());
+			g.writeEndObject();
+			written++;
+		}
+		g.writeEndArray();
+		g.writeEndObject();
+	}
+}
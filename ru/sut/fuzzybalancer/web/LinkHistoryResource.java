@@ -0,0 +1,90 @@
+package ru.sut.fuzzybalancer.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import net.floodlightcontroller.routing.Link;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import ru.sut.fuzzybalancer.IFuzzyBalancerService;
+import ru.sut.fuzzybalancer.LinkHistory;
+
+/**
+ * Samples of one link, oldest first. Optional query parameters: from and
+ * to in milliseconds since the epoch, and limit to keep the most recent
+ * samples only.
+ */
+public class LinkHistoryResource extends ServerResource {
+
+	@Get("json")
+	public Representation retrieve() {
+		IFuzzyBalancerService balancer = (IFuzzyBalancerService) getContext()
+				.getAttributes().get(
+						IFuzzyBalancerService.class.getCanonicalName());
+		LinkHistory history = balancer.getLinkHistory();
+		if (history == null) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND, "Link history is disabled");
+			return null;
+		}
+
+		final List<LinkHistory.Sample> samples;
+		try {
+			Link link = new Link(
+					LinkCostsResource.parseDpid(attribute("src-dpid")),
+					(short) Integer.parseInt(attribute("src-port")),
+					LinkCostsResource.parseDpid(attribute("dst-dpid")),
+					(short) Integer.parseInt(attribute("dst-port")));
+			Form query = getQuery();
+			String value = query.getFirstValue("from");
+			long from = (value == null) ? 0 : Long.parseLong(value);
+			value = query.getFirstValue("to");
+			long to = (value == null) ? Long.MAX_VALUE : Long.parseLong(value);
+			List<LinkHistory.Sample> range = history.query(link, from, to);
+			value = query.getFirstValue("limit");
+			if (value != null && range.size() > Integer.parseInt(value))
+				range = range.subList(range.size() - Integer.parseInt(value),
+						range.size());
+			samples = range;
+		} catch (NumberFormatException e) {
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+
+		return new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				JsonGenerator g = LinkCostsResource.jsonFactory
+						.createJsonGenerator(out, JsonEncoding.UTF8);
+				g.writeStartArray();
+				for (LinkHistory.Sample sample : samples) {
+					g.writeStartObject();
+					g.writeNumberField("timestamp", sample.getTimestamp());
+					g.writeNumberField("bytes", sample.getBytes());
+					if (sample.getUtilisation() < 0)
+						g.writeNullField("utilisation");
+					else
+						g.writeNumberField("utilisation",
+								sample.getUtilisation());
+					g.writeNumberField("cost", sample.getCost());
+					g.writeEndObject();
+				}
+				g.writeEndArray();
+				g.close();
+			}
+		};
+	}
+
+	protected String attribute(String name) {
+		return (String) getRequestAttributes().get(name);
+	}
+}
@@ -0,0 +1,28 @@
+package ru.sut.fuzzybalancer.web;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import ru.sut.fuzzybalancer.BalancerMetrics;
+import ru.sut.fuzzybalancer.IFuzzyBalancerService;
+
+/**
+ * Histograms, counters and gauges of the balancer pipeline.
+ */
+public class MetricsResource extends ServerResource {
+
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		IFuzzyBalancerService balancer = (IFuzzyBalancerService) getContext()
+				.getAttributes().get(
+						IFuzzyBalancerService.class.getCanonicalName());
+		Map<String, Object> result = new HashMap<String, Object>();
+		BalancerMetrics metrics = balancer.getMetrics();
+		result.put("histograms", metrics.getHistograms());
+		result.put("counters", metrics.getCounters());
+		return result;
+	}
+}
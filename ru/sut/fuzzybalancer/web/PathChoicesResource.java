@@ -0,0 +1,69 @@
+package ru.sut.fuzzybalancer.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.topology.ITopologyService;
+import net.floodlightcontroller.topology.PathChoice;
+import net.floodlightcontroller.topology.TopologyEpoch;
+import net.floodlightcontroller.topology.TopologyManagerFuzzyBalancer;
+
+import org.openflow.util.HexString;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * K candidates of a switch pair with their fuzzy scores, the selected one
+ * flagged, as of the current topology instance.
+ */
+public class PathChoicesResource extends ServerResource {
+
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		ITopologyService topology = (ITopologyService) getContext()
+				.getAttributes().get(ITopologyService.class.getCanonicalName());
+		if (!(topology instanceof TopologyManagerFuzzyBalancer)) {
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+					"The balancing topology manager is not running");
+			return null;
+		}
+
+		long src, dst;
+		try {
+			src = LinkCostsResource.parseDpid((String) getRequestAttributes()
+					.get("src-dpid"));
+			dst = LinkCostsResource.parseDpid((String) getRequestAttributes()
+					.get("dst-dpid"));
+		} catch (NumberFormatException e) {
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+
+		TopologyEpoch epoch = ((TopologyManagerFuzzyBalancer) topology)
+				.getCurrentEpoch();
+		List<Map<String, Object>> candidates = new ArrayList<Map<String, Object>>();
+		for (PathChoice choice : epoch.getInstance(true).getPathChoices(src, dst)) {
+			List<String> switches = new ArrayList<String>(choice.getSwitches()
+					.size());
+			for (long sw : choice.getSwitches())
+				switches.add(HexString.toHexString(sw));
+			Map<String, Object> candidate = new LinkedHashMap<String, Object>();
+			candidate.put("switches", switches);
+			candidate.put("weight", choice.getWeight());
+			candidate.put("score", choice.getScore());
+			candidate.put("selected", choice.isSelected());
+			candidates.add(candidate);
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("src-switch", HexString.toHexString(src));
+		result.put("dst-switch", HexString.toHexString(dst));
+		result.put("epoch", epoch.getEpoch());
+		result.put("cost-epoch", epoch.getCostEpoch());
+		result.put("candidates", candidates);
+		return result;
+	}
+}